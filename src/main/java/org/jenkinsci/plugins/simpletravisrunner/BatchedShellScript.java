@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.util.List;
+
+/**
+ * Generates a single shell script running all the commands of a Travis phase, so that a phase costs one Pipeline
+ * "sh" step rather than one per command.
+ *
+ * Each command is still run on its own with "sh -xe", the same as a separate "sh" step would, under its own timeout
+ * if the "timeout" command is available on the agent. When a command fails, the script reports which one and its
+ * exit code.
+ *
+ * The output of each command can also be capped, so only its first and last lines reach the build log, with the full
+ * output of any failed command appended to a gzipped log file instead.
+ */
+public final class BatchedShellScript {
+    /**
+     * Exit code used by coreutils' "timeout" when the command timed out.
+     */
+    private static final int TIMEOUT_EXIT_CODE = 124;
+
+    private BatchedShellScript() {
+    }
+
+    /**
+     * Generates the script for a phase.
+     *
+     * @param commands The commands in the phase, in order.
+     * @param timeout Timeout in minutes for each individual command.
+     * @param continueOnFailure If true, keep running the remaining commands after one fails and only exit with a
+     *                          failure at the end, as Travis does for "script". Otherwise, exit on the first failure.
+     * @return The script, ready to pass to the "sh" step.
+     */
+    public static String generate(List<String> commands, int timeout, boolean continueOnFailure) {
+        return generate(commands, timeout, continueOnFailure, 0, null);
+    }
+
+    /**
+     * Generates the script for a phase, optionally capping the output of each command.
+     *
+     * @param commands The commands in the phase, in order.
+     * @param timeout Timeout in minutes for each individual command.
+     * @param continueOnFailure If true, keep running the remaining commands after one fails and only exit with a
+     *                          failure at the end, as Travis does for "script". Otherwise, exit on the first failure.
+     * @param logLimit If more than 0, the number of lines of each command's output to show - half from the start, half
+     *                 from the end. Otherwise all the output is shown.
+     * @param fullLogFile If capping, the gzipped file, relative to the workspace, to append the full output of failed
+     *                    commands to - and of a command still running if the script is stopped.
+     * @return The script, ready to pass to the "sh" step.
+     */
+    public static String generate(List<String> commands, int timeout, boolean continueOnFailure, int logLimit,
+                                  String fullLogFile) {
+        boolean capped = logLimit > 0 && fullLogFile != null;
+        StringBuilder s = new StringBuilder();
+        s.append("set +ex\n");
+        s.append("travis_failed=0\n");
+        s.append("travis_run() {\n");
+        s.append("  if command -v timeout >/dev/null 2>&1; then\n");
+        s.append("    timeout \"$1\" sh -xec \"$2\"\n");
+        s.append("  else\n");
+        s.append("    sh -xec \"$2\"\n");
+        s.append("  fi\n");
+        s.append("}\n");
+        if (capped) {
+            s.append("travis_out=$(mktemp 2>/dev/null || echo \"${TMPDIR:-/tmp}/travis_out.$$\")\n");
+            s.append("travis_show() {\n");
+            s.append("  travis_lines=$(($(wc -l < \"$travis_out\")))\n");
+            s.append("  if [ $travis_lines -gt ").append(logLimit).append(" ]; then\n");
+            s.append("    head -n ").append(logLimit / 2).append(" \"$travis_out\"\n");
+            s.append("    echo \"... $((travis_lines - ").append(logLimit).append(")) lines omitted ...\"\n");
+            s.append("    tail -n ").append(logLimit - logLimit / 2).append(" \"$travis_out\"\n");
+            s.append("  else\n");
+            s.append("    cat \"$travis_out\"\n");
+            s.append("  fi\n");
+            s.append("}\n");
+            s.append("travis_save() {\n");
+            s.append("  { printf '%s\\n' \"$ $1\"; cat \"$travis_out\"; } | gzip -c >> ").append(quote(fullLogFile))
+                    .append('\n');
+            s.append("  echo \"Full output of the $2 command saved to \"").append(quote(fullLogFile)).append('\n');
+            s.append("}\n");
+            // If the "sh" step is stopped by a timeout or an abort while a command is running, show and save what it
+            // printed so far rather than losing it with the temporary file. The trap can run with the command's
+            // output still redirected, so it writes to a copy of the original stdout.
+            s.append("exec 3>&1\n");
+            s.append("travis_current=\n");
+            s.append("travis_stopped() {\n");
+            s.append("  if [ -n \"$travis_current\" ]; then\n");
+            s.append("    { travis_show; travis_save \"$travis_current\" interrupted; } >&3 2>&1\n");
+            s.append("  fi\n");
+            s.append("  exit 143\n");
+            s.append("}\n");
+            s.append("trap 'rm -f \"$travis_out\"' EXIT\n");
+            s.append("trap travis_stopped HUP INT TERM\n");
+            s.append("mkdir -p \"$(dirname ").append(quote(fullLogFile)).append(")\"\n");
+        }
+
+        int total = commands.size();
+        for (int i = 0; i < total; i++) {
+            String command = quote(commands.get(i));
+            String position = "Command " + (i + 1) + " of " + total;
+
+            // printf rather than echo, since some shells' echo expands backslashes in the command.
+            s.append("printf '%s\\n' ").append(quote("$ " + commands.get(i))).append('\n');
+            if (capped) {
+                s.append("travis_current=").append(command).append('\n');
+                s.append("travis_run ").append(timeout * 60).append(' ').append(command)
+                        .append(" > \"$travis_out\" 2>&1\n");
+                s.append("travis_rc=$?\n");
+                s.append("travis_current=\n");
+                s.append("travis_show\n");
+                s.append("if [ $travis_rc -ne 0 ]; then\n");
+                s.append("  travis_save ").append(command).append(" failed\n");
+                s.append("fi\n");
+            } else {
+                s.append("travis_run ").append(timeout * 60).append(' ').append(command).append('\n');
+                s.append("travis_rc=$?\n");
+            }
+            s.append("if [ $travis_rc -ne 0 ]; then\n");
+            s.append("  if [ $travis_rc -eq ").append(TIMEOUT_EXIT_CODE).append(" ]; then\n");
+            s.append("    printf '%s %s\\n' ").append(quote(position + " timed out after " + timeout + " minutes:"))
+                    .append(' ').append(command).append('\n');
+            s.append("  else\n");
+            s.append("    printf '%s %s %s\\n' ").append(quote(position + " failed with exit code"))
+                    .append(" \"$travis_rc:\" ")
+                    .append(command).append('\n');
+            s.append("  fi\n");
+            if (continueOnFailure) {
+                s.append("  travis_failed=$travis_rc\n");
+            } else {
+                s.append("  exit $travis_rc\n");
+            }
+            s.append("fi\n");
+        }
+
+        s.append("exit $travis_failed\n");
+        return s.toString();
+    }
+
+    /**
+     * @param cellName The name of the env matrix execution, or null if there isn't one.
+     * @return The file, relative to the workspace, to save the full output of its failed commands to.
+     */
+    public static String logFileFor(String cellName) {
+        String name = cellName == null ? "build" : cellName.replaceAll("[^A-Za-z0-9_.=-]+", "_");
+        return ".travis-logs/" + name + ".log.gz";
+    }
+
+    /**
+     * Quotes a string for the shell, using single quotes.
+     *
+     * @param value The string to quote.
+     * @return The quoted string.
+     */
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\"'\"'") + "'";
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Looks up the paths changed since the last successful build, for checking against "paths" filters.
+ */
+final class ChangedPaths {
+    private ChangedPaths() {
+    }
+
+    /**
+     * Collects the changes of the build and of every build since the last successful one, so that whatever a failed,
+     * aborted or skipped build didn't get to test successfully is still tested by the next one.
+     *
+     * @param run The build.
+     * @return The paths changed by the commits in the changesets of the build and those before it back to the last
+     *         successful build, or null if there are no changes recorded - such as for a build with no new commits - or
+     *         no successful build to compare with - such as for the first build of a branch - in which case nothing
+     *         should be skipped.
+     */
+    static List<String> forBuild(Run<?,?> run) {
+        Run<?,?> lastSuccessful = run.getPreviousSuccessfulBuild();
+        if (lastSuccessful == null) {
+            return null;
+        }
+        Set<String> paths = new LinkedHashSet<String>();
+        for (Run<?,?> build = run; build != lastSuccessful; build = build.getPreviousBuild()) {
+            if (!(build instanceof WorkflowRun)) {
+                return null;
+            }
+            for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : ((WorkflowRun) build).getChangeSets()) {
+                for (ChangeLogSet.Entry entry : changeSet) {
+                    paths.addAll(entry.getAffectedPaths());
+                }
+            }
+        }
+        return paths.isEmpty() ? null : new ArrayList<String>(paths);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches the paths changed in a build against a "paths" filter: a list of Ant-style glob patterns relative to the
+ * repository root, such as "src/**" or "**&#47;*.java". Patterns starting with "!" exclude matching paths, so e.g.
+ * ["**", "!docs/**"] is affected by any change outside "docs".
+ */
+final class PathFilter {
+    private PathFilter() {
+    }
+
+    /**
+     * @param patterns The "paths" filter, if any.
+     * @param changedPaths The paths changed in the build, or null if they aren't known.
+     * @return true if there's no filter, the changed paths aren't known, or any changed path matches the filter.
+     */
+    static boolean matches(List<String> patterns, Collection<String> changedPaths) {
+        if (patterns == null || patterns.isEmpty() || changedPaths == null) {
+            return true;
+        }
+        boolean onlyExclusions = true;
+        for (String pattern : patterns) {
+            if (!pattern.startsWith("!")) {
+                onlyExclusions = false;
+            }
+        }
+        for (String path : changedPaths) {
+            boolean included = onlyExclusions;
+            boolean excluded = false;
+            for (String pattern : patterns) {
+                if (pattern.startsWith("!")) {
+                    excluded = excluded || toRegex(pattern.substring(1)).matcher(path).matches();
+                } else {
+                    included = included || toRegex(pattern).matcher(path).matches();
+                }
+            }
+            if (included && !excluded) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts an Ant-style glob to a regex: "**" matches across directories, "*" and "?" within a single one, and a
+     * trailing "/" matches everything under the directory.
+     *
+     * @param glob The pattern.
+     * @return The equivalent regex.
+     */
+    static Pattern toRegex(String glob) {
+        String pattern = glob.startsWith("/") ? glob.substring(1) : glob;
+        if (pattern.endsWith("/")) {
+            pattern += "**";
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (pattern.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (pattern.startsWith("**", i)) {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
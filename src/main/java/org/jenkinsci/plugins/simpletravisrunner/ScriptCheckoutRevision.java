@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.InvisibleAction;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remembers which revision was checked out into the "@script" workspace to load a build's Jenkinsfile, so that
+ * {@link TravisFileReader} can tell whether a concurrent build of the same job has since checked out another one.
+ *
+ * Only builds of jobs using the "lightweight" option need this, and whether a build will use it isn't known until its
+ * Jenkinsfile runs, so the revision is recorded for a build if the previous build of the job read its ".travis.yml"
+ * that way. The first such build of a job has nothing recorded.
+ *
+ * The revision is taken from ".git/HEAD", as Git is the only SCM whose checkout can be identified without depending on
+ * its plugin. For other SCMs nothing is recorded and the checkout can't be checked.
+ */
+@Extension
+public class ScriptCheckoutRevision extends SCMListener {
+    @Override
+    public void onCheckout(Run<?,?> build, SCM scm, FilePath workspace, TaskListener listener, File changelogFile,
+                           SCMRevisionState pollingBaseline) throws Exception {
+        // The Jenkinsfile checkout is still holding its workspace lease here, so nothing else can have changed it yet.
+        if (workspace.getRemote().endsWith("@script")) {
+            Run<?,?> previous = build.getPreviousBuild();
+            if (previous != null && previous.getAction(Revision.class) != null) {
+                build.replaceAction(new Revision(readHead(workspace)));
+            }
+        }
+    }
+
+    /**
+     * Marks a build as reading its ".travis.yml" from the "@script" workspace, so the next build of the job records
+     * the revision it checks out there.
+     *
+     * @param build The build.
+     */
+    static void markLightweightRead(Run<?,?> build) {
+        if (build.getAction(Revision.class) == null) {
+            build.addAction(new Revision(null));
+        }
+    }
+
+    /**
+     * @param build The build.
+     * @param scriptCheckout The "@script" workspace, which the caller must hold a lease on.
+     * @return Why the checkout can't be trusted to be of the revision the build's Jenkinsfile was loaded from, or null
+     *         if it can be.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static String mismatch(Run<?,?> build, FilePath scriptCheckout) throws IOException, InterruptedException {
+        Revision revision = build.getAction(Revision.class);
+        if (revision == null || revision.head == null) {
+            // Nothing to compare with, so only trust the checkout if no other build of the job can have changed it.
+            Job<?,?> job = build.getParent();
+            if (job instanceof Queue.Task && ((Queue.Task) job).isConcurrentBuild()) {
+                return "No revision recorded for the Pipeline script checkout, and concurrent builds are allowed";
+            }
+            return null;
+        }
+        if (!revision.head.equals(readHead(scriptCheckout))) {
+            return "Pipeline script checkout has moved on to another revision";
+        }
+        return null;
+    }
+
+    private static String readHead(FilePath checkout) throws IOException, InterruptedException {
+        FilePath head = checkout.child(".git/HEAD");
+        return head.exists() ? head.readToString().trim() : null;
+    }
+
+    /**
+     * Marks a build which read its ".travis.yml" from the "@script" workspace, with the contents of ".git/HEAD" there
+     * right after the build checked out its Jenkinsfile - the commit hash, as the Git plugin checks out a detached
+     * HEAD - if it was recorded.
+     */
+    static final class Revision extends InvisibleAction {
+        private final String head;
+
+        Revision(String head) {
+            this.head = head;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which of the setup phases of a ".travis.yml" don't depend on the env matrix, so that they can be run once
+ * and their workspace handed to every matrix execution, rather than repeated in each.
+ */
+final class SharedSetupPhases {
+    /**
+     * The phases which can be shared, in the order they're run. Only a leading run of these can be shared, since a
+     * later phase may rely on what an earlier one did.
+     */
+    private static final List<String> SHAREABLE_PHASES = Collections.unmodifiableList(Arrays.asList(
+            "before_install", "install"));
+
+    private SharedSetupPhases() {
+    }
+
+    /**
+     * Finds the setup phases that can be run once for all matrix executions.
+     *
+     * @param plan The compiled ".travis.yml".
+     * @return The phases present in the plan that don't reference any of its env matrix variables, in the order they're run.
+     *         Nothing can be shared if the matrix has language runtime axes, since every phase may depend on the runtime.
+     */
+    static List<String> find(TravisPlan plan) {
+        List<String> phases = new ArrayList<String>();
+        if (!plan.getRuntimes().isEmpty()) {
+            return phases;
+        }
+        for (String phase : SHAREABLE_PHASES) {
+            if (!plan.hasPhase(phase)) {
+                continue;
+            }
+            if (referencesAny(plan.getCommands(phase), plan.getAxisKeys())) {
+                break;
+            }
+            phases.add(phase);
+        }
+        return phases;
+    }
+
+    /**
+     * Works out what to leave out of the stash of the shared setup's workspace: the Git metadata, which the matrix
+     * executions don't use, and the cache directories, which they restore from the cache the shared setup saved.
+     *
+     * @param plan The compiled ".travis.yml".
+     * @return Comma-separated Ant-style exclude patterns for the "stash" step. Cache directories outside the
+     *         workspace aren't stashed anyway, so are left out.
+     */
+    static String stashExcludes(TravisPlan plan) {
+        StringBuilder excludes = new StringBuilder(".git/**");
+        for (String directory : plan.getCacheDirectories()) {
+            if (directory.startsWith("/") || directory.startsWith("~") || directory.contains("$")) {
+                continue;
+            }
+            String relative = directory.startsWith("./") ? directory.substring(2) : directory;
+            while (relative.endsWith("/")) {
+                relative = relative.substring(0, relative.length() - 1);
+            }
+            if (relative.length() > 0 && !relative.equals(".")) {
+                excludes.append(',').append(relative).append("/**");
+            }
+        }
+        return excludes.toString();
+    }
+
+    /**
+     * @param commands The commands for a phase.
+     * @param names Environment variable names.
+     * @return true if any of the commands refer to any of the variables, as either "$NAME" or "${NAME}".
+     */
+    static boolean referencesAny(List<String> commands, Collection<String> names) {
+        for (String name : names) {
+            Pattern reference = Pattern.compile("\\$\\{?" + Pattern.quote(name) + "(?![A-Za-z0-9_])");
+            for (String command : commands) {
+                if (reference.matcher(command).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -56,20 +56,16 @@ public class SimpleTravisRunnerDSL extends GlobalVariable {
          */
         public MiscWhitelist() throws IOException {
             super(new StaticWhitelist(
-                    "new org.yaml.snakeyaml.Yaml",
-                    "method org.yaml.snakeyaml.Yaml load java.lang.String",
-                    "method java.util.Map containsKey java.lang.Object",
                     "method java.lang.Class isInstance java.lang.Object",
                     "staticMethod org.codehaus.groovy.runtime.ScriptBytecodeAdapter castToType java.lang.Object java.lang.Class",
-                    "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods toSet java.util.Collection",
-                    "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods size java.lang.Object[]",
                     "method java.util.Map size",
                     "method java.util.Map keySet",
-                    "method java.util.Map values",
+                    "method java.util.List remove int",
                     "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods toList java.util.Collection",
-                    "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods transpose java.util.List",
-                    "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods combinations java.util.Collection",
-                    "staticMethod org.codehaus.groovy.runtime.ScriptBytecodeAdapter compareGreaterThan java.lang.Object java.lang.Object"
+                    "staticMethod org.codehaus.groovy.runtime.ScriptBytecodeAdapter compareGreaterThan java.lang.Object java.lang.Object",
+                    "staticMethod org.codehaus.groovy.runtime.ScriptBytecodeAdapter compareLessThan java.lang.Object java.lang.Object",
+                    "staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods multiply java.lang.Number java.lang.Number",
+                    "staticMethod java.lang.System currentTimeMillis"
             ));
         }
     }
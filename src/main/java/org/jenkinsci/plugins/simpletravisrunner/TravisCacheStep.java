@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import com.google.inject.Inject;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restores or saves the directories listed under "cache: directories:" in a ".travis.yml", using the
+ * {@link TravisCacheStore}. Used by the runner around the "install" and "script" phases.
+ */
+public class TravisCacheStep extends AbstractStepImpl {
+    private final String action;
+    private final String key;
+    private final List<String> directories;
+
+    /**
+     * @param action Either "restore" or "save".
+     * @param key The key to store the directories under, within the current job, e.g. the branch and env matrix execution.
+     * @param directories The directories to restore or save. Relative paths are relative to the workspace, and "~" or
+     *                    "$HOME" refer to the home directory on the agent.
+     */
+    @DataBoundConstructor
+    public TravisCacheStep(String action, String key, List<String> directories) {
+        if (!"restore".equals(action) && !"save".equals(action)) {
+            throw new IllegalArgumentException("action must be either 'restore' or 'save', not " + action);
+        }
+        this.action = action;
+        this.key = key;
+        this.directories = directories != null ? new ArrayList<String>(directories) : new ArrayList<String>();
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<String> getDirectories() {
+        return directories;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisCache";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Restore or save Travis cache directories";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousNonBlockingStepExecution<Void> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisCacheStep step;
+        @StepContextParameter private transient FilePath workspace;
+        @StepContextParameter private transient EnvVars env;
+        @StepContextParameter private transient TaskListener listener;
+        @StepContextParameter private transient Run<?,?> run;
+
+        @Override
+        protected Void run() throws Exception {
+            TravisCacheStore store = TravisCacheStore.get();
+            for (String directory : step.getDirectories()) {
+                FilePath dir = resolve(directory);
+                String cacheKey = run.getParent().getFullName() + "\n" + step.getKey() + "\n" + directory;
+                // A broken cache shouldn't break the build - just carry on without it.
+                try {
+                    if ("restore".equals(step.getAction())) {
+                        if (store.restore(cacheKey, dir)) {
+                            listener.getLogger().println("Restored cache for " + directory);
+                        } else {
+                            listener.getLogger().println("No cache found for " + directory);
+                        }
+                    } else if (store.save(cacheKey, dir)) {
+                        listener.getLogger().println("Saved cache for " + directory);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("Failed to " + step.getAction() + " cache for " + directory));
+                }
+            }
+            return null;
+        }
+
+        private FilePath resolve(String directory) {
+            String expanded = directory;
+            if (expanded.equals("~") || expanded.startsWith("~/")) {
+                expanded = "$HOME" + expanded.substring(1);
+            }
+            expanded = env.expand(expanded);
+            if (expanded.startsWith("/")) {
+                return new FilePath(workspace.getChannel(), expanded);
+            }
+            return workspace.child(expanded);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store for Travis "cache: directories:" on the master, or on a shared filesystem path given by the
+ * {@code org.jenkinsci.plugins.simpletravisrunner.TravisCacheStore.root} system property.
+ *
+ * Each cached directory is stored as a gzipped tarball under "objects", named after a SHA-256 of its contents worked
+ * out on the agent from its file paths and digests, so identical directories saved under different keys share a single
+ * archive, and a directory that hasn't changed since it was last saved isn't sent to the master again. Keys map to
+ * archives via small files under "keys". Once the archives take up more than {@link #MAX_SIZE} bytes, the least
+ * recently saved or restored ones are deleted.
+ */
+public final class TravisCacheStore {
+    private static final Logger LOGGER = Logger.getLogger(TravisCacheStore.class.getName());
+
+    /**
+     * Maximum total size of the archives in bytes - 5GB by default.
+     */
+    static final long MAX_SIZE = Long.getLong(TravisCacheStore.class.getName() + ".maxSize", 5L * 1024 * 1024 * 1024);
+
+    /**
+     * How old a temporary file being archived into has to be before it's taken to be left over from a crash.
+     */
+    private static final long STALE_TMP_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static TravisCacheStore instance;
+
+    private final File root;
+    private final long maxSize;
+
+    TravisCacheStore(File root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return The store at the configured location.
+     */
+    static synchronized TravisCacheStore get() {
+        String configuredRoot = System.getProperty(TravisCacheStore.class.getName() + ".root");
+        File root;
+        if (configuredRoot != null) {
+            root = new File(configuredRoot);
+        } else {
+            root = new File(Jenkins.getActiveInstance().getRootDir(), "simple-travis-runner/cache");
+        }
+        if (instance == null || !instance.root.equals(root)) {
+            instance = new TravisCacheStore(root, MAX_SIZE);
+        }
+        return instance;
+    }
+
+    /**
+     * Archives the given directory and stores it under the given key, replacing anything stored under the key before.
+     *
+     * @param key The cache key.
+     * @param dir The directory to archive, possibly on an agent.
+     * @return true if the directory existed and was stored, whether or not its contents were already.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean save(String key, FilePath dir) throws IOException, InterruptedException {
+        if (!dir.isDirectory()) {
+            return false;
+        }
+
+        File objects = new File(root, "objects");
+        File keys = new File(root, "keys");
+        if (!objects.isDirectory() && !objects.mkdirs() || !keys.isDirectory() && !keys.mkdirs()) {
+            throw new IOException("Could not create cache directories under " + root);
+        }
+
+        // Only the hash comes back from the agent - the contents are only sent if they aren't already stored.
+        String hash = dir.act(new ContentHash());
+        synchronized (this) {
+            File archive = archiveFile(hash);
+            if (archive.exists()) {
+                touch(archive);
+                FileUtils.writeStringToFile(new File(keys, hashOf(key)), hash, "UTF-8");
+                return true;
+            }
+        }
+
+        File tmp = File.createTempFile("archive", ".tmp", objects);
+        try {
+            // Compressed on the agent, so only the compressed bytes go over the channel.
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                dir.archive(ArchiverFactory.TARGZ, out, new DirScanner.Full());
+            } finally {
+                out.close();
+            }
+
+            synchronized (this) {
+                File archive = archiveFile(hash);
+                if (archive.exists()) {
+                    // Saved by someone else in the meantime.
+                    touch(archive);
+                } else if (!tmp.renameTo(archive)) {
+                    throw new IOException("Could not move " + tmp + " to " + archive);
+                }
+                FileUtils.writeStringToFile(new File(keys, hashOf(key)), hash, "UTF-8");
+                evict();
+            }
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.log(Level.WARNING, "Could not delete {0}", tmp);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the contents of the given directory with whatever is stored under the given key.
+     *
+     * @param key The cache key.
+     * @param dir The directory to extract into, possibly on an agent.
+     * @return true if something was stored under the key and it was extracted.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    boolean restore(String key, FilePath dir) throws IOException, InterruptedException {
+        File archive;
+        synchronized (this) {
+            File keyFile = new File(new File(root, "keys"), hashOf(key));
+            if (!keyFile.isFile()) {
+                return false;
+            }
+            archive = archiveFile(FileUtils.readFileToString(keyFile, "UTF-8").trim());
+            if (!archive.isFile()) {
+                // Evicted since it was saved.
+                return false;
+            }
+            touch(archive);
+        }
+
+        // Anything already there would otherwise be mixed in with the cached contents, and saved along with them.
+        if (dir.exists()) {
+            dir.deleteContents();
+        }
+        dir.mkdirs();
+        InputStream in = new FileInputStream(archive);
+        try {
+            dir.untarFrom(in, FilePath.TarCompression.GZIP);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used archives until the rest fit in the maximum size, along with any temporary files
+     * left over from a crash, and any keys left pointing at deleted archives. Temporary files still being written don't
+     * count towards the size.
+     */
+    private synchronized void evict() {
+        File[] files = new File(root, "objects").listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        int count = 0;
+        File[] archives = new File[files.length];
+        for (File file : files) {
+            if (file.getName().endsWith(".tar.gz")) {
+                archives[count++] = file;
+                total += file.length();
+            } else if (file.getName().endsWith(".tmp")
+                    && file.lastModified() < System.currentTimeMillis() - STALE_TMP_MILLIS && file.delete()) {
+                LOGGER.log(Level.FINE, "Deleted stale {0}", file);
+            }
+        }
+        archives = Arrays.copyOf(archives, count);
+        if (total <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(archives, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < archives.length && total > maxSize; i++) {
+            long length = archives[i].length();
+            if (archives[i].delete()) {
+                total -= length;
+                LOGGER.log(Level.FINE, "Evicted {0}", archives[i]);
+            }
+        }
+
+        File[] keys = new File(root, "keys").listFiles();
+        if (keys == null) {
+            return;
+        }
+        for (File key : keys) {
+            try {
+                if (!archiveFile(FileUtils.readFileToString(key, "UTF-8").trim()).exists() && key.delete()) {
+                    LOGGER.log(Level.FINE, "Deleted {0}, as its archive was evicted", key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read " + key, e);
+            }
+        }
+    }
+
+    private File archiveFile(String hash) {
+        return new File(new File(root, "objects"), hash + ".tar.gz");
+    }
+
+    private static void touch(File file) {
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            LOGGER.log(Level.FINE, "Could not update the modification time of {0}", file);
+        }
+    }
+
+    private static String hashOf(String value) {
+        MessageDigest digest = sha256();
+        return Util.toHexString(digest.digest(value.getBytes(Charset.forName("UTF-8"))));
+    }
+
+    /**
+     * Works out a SHA-256 of a directory's contents where it is: over the sorted relative paths of everything in it,
+     * along with each file's digest and executable bit, and each symlink's target. Unlike a hash of a tarball, it
+     * doesn't change when only modification times do.
+     */
+    private static final class ContentHash extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            MessageDigest manifest = sha256();
+            add(manifest, dir, "");
+            return Util.toHexString(manifest.digest());
+        }
+
+        private static void add(MessageDigest manifest, File dir, String prefix) throws IOException {
+            String[] names = dir.list();
+            if (names == null) {
+                return;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                File file = new File(dir, name);
+                String path = prefix + name;
+                String entry;
+                if (Util.isSymlink(file)) {
+                    entry = "link\0" + path + "\0" + Util.resolveSymlink(file);
+                } else if (file.isDirectory()) {
+                    entry = "dir\0" + path;
+                } else {
+                    entry = (file.canExecute() ? "exec\0" : "file\0") + path + "\0" + digestOf(file);
+                }
+                manifest.update((entry + "\n").getBytes(Charset.forName("UTF-8")));
+                if (file.isDirectory() && !Util.isSymlink(file)) {
+                    add(manifest, file, path + "/");
+                }
+            }
+        }
+
+        private static String digestOf(File file) throws IOException {
+            MessageDigest digest = sha256();
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            return Util.toHexString(digest.digest());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
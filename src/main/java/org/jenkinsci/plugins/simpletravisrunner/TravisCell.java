@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single env matrix execution within a {@link TravisPlan}.
+ */
+public final class TravisCell implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> env;
+    private final boolean allowFailure;
+    private final List<String> paths;
+    private final String name;
+
+    TravisCell(List<String> env, boolean allowFailure) {
+        this(env, allowFailure, Collections.<String>emptyList());
+    }
+
+    TravisCell(List<String> env, boolean allowFailure, List<String> paths) {
+        this(env, allowFailure, paths, env.toString());
+    }
+
+    private TravisCell(List<String> env, boolean allowFailure, List<String> paths, String name) {
+        this.env = Collections.unmodifiableList(new ArrayList<String>(env));
+        this.allowFailure = allowFailure;
+        this.paths = Collections.unmodifiableList(new ArrayList<String>(paths));
+        this.name = name;
+    }
+
+    /**
+     * @param name The name to use instead.
+     * @return A copy of this execution with the given name.
+     */
+    TravisCell withName(String name) {
+        return new TravisCell(env, allowFailure, paths, name);
+    }
+
+    /**
+     * @return The environment for this execution, as a list of "KEY=value" strings suitable for "withEnv".
+     */
+    public List<String> getEnv() {
+        return env;
+    }
+
+    /**
+     * @return true if this execution is listed in "matrix.allow_failures".
+     */
+    public boolean isAllowFailure() {
+        return allowFailure;
+    }
+
+    /**
+     * @return The language runtimes for this execution, as "axis=version" strings, e.g. "jdk=openjdk8".
+     */
+    public List<String> getRuntimes() {
+        List<String> runtimes = new ArrayList<String>();
+        for (Map.Entry<String,String> axis : TravisPlan.RUNTIME_AXES.entrySet()) {
+            for (String assignment : env) {
+                if (assignment.startsWith(axis.getValue() + "=")) {
+                    runtimes.add(axis.getKey() + "=" + assignment.substring(axis.getValue().length() + 1));
+                }
+            }
+        }
+        return runtimes;
+    }
+
+    /**
+     * @return The "paths" filter for this execution from "matrix.paths" or its "matrix.include" entry, if any.
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @param changedPaths The paths changed in the build, or null if they aren't known.
+     * @return false if this execution has a "paths" filter and none of the changed paths match it.
+     */
+    public boolean isAffectedBy(Collection<String> changedPaths) {
+        return PathFilter.matches(getPaths(), changedPaths);
+    }
+
+    /**
+     * @return The name used for this execution's parallel branch, its timings and reruns: its environment, e.g.
+     *         "[FOO=a, BAR=1]", followed by " #2" and so on if an earlier execution has the same environment.
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.slaves.WorkspaceList;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Reads a ".travis.yml" file without allocating an executor. Used by {@link TravisFileStep}.
+ *
+ * When a Pipeline script is loaded from SCM, the whole repository is checked out into a "@script" workspace on the
+ * master in order to read the Jenkinsfile. The ".travis.yml" sits right next to it, so there's no need to grab an
+ * agent and clone again just to read it.
+ *
+ * The checkout is shared by all the builds of the job, though, so a concurrent build may have checked out another
+ * revision since this one loaded its Jenkinsfile. The file is read while holding the checkout's workspace lease, and
+ * not at all if the checkout may have moved on - see {@link ScriptCheckoutRevision}.
+ *
+ * As the checkout is on the master, the file must be inside it and must not be, or be reached through, a symbolic
+ * link - otherwise a commit could have the master read any file it can.
+ */
+final class TravisFileReader {
+    private TravisFileReader() {
+    }
+
+    /**
+     * Reads the given file from the master-side checkout used to load a build's Jenkinsfile.
+     *
+     * @param run The build.
+     * @param path The path to the file, relative to the root of the repository.
+     * @param listener Where to say why the file wasn't read, if it isn't.
+     * @return The contents of the file, or null if the checkout may now be of another revision than the build's.
+     * @throws IOException if the path isn't a plain file within the checkout.
+     * @throws InterruptedException
+     * @throws IllegalStateException if the build's script was not loaded from SCM.
+     * @throws FileNotFoundException if the file doesn't exist in the checkout.
+     */
+    static String readFromScriptCheckout(Run<?,?> run, String path, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (path == null || path.startsWith("/") || path.contains("..")) {
+            throw new IllegalArgumentException("Path must be relative to the root of the repository: " + path);
+        }
+        Jenkins jenkins = Jenkins.getInstance();
+        Job<?,?> job = run.getParent();
+        if (jenkins == null || !(job instanceof TopLevelItem)) {
+            throw new IllegalStateException("Cannot locate the Pipeline script checkout for " + job.getFullName());
+        }
+        FilePath baseWorkspace = jenkins.getWorkspaceFor((TopLevelItem) job);
+        FilePath scriptCheckout = baseWorkspace == null ? null : baseWorkspace.withSuffix("@script");
+        if (scriptCheckout == null || scriptCheckout.isRemote() || !scriptCheckout.isDirectory()) {
+            throw new IllegalStateException("No Pipeline script checkout found for " + job.getFullName());
+        }
+        // The same lease CpsScmFlowDefinition takes, so no other build can be checking out over it while we read.
+        Computer computer = jenkins.toComputer();
+        if (computer == null) {
+            throw new IllegalStateException("No Pipeline script checkout found for " + job.getFullName());
+        }
+        ScriptCheckoutRevision.markLightweightRead(run);
+        WorkspaceList.Lease lease = computer.getWorkspaceList().acquire(scriptCheckout);
+        try {
+            String mismatch = ScriptCheckoutRevision.mismatch(run, scriptCheckout);
+            if (mismatch != null) {
+                listener.getLogger().println(mismatch);
+                return null;
+            }
+            File travisFile = resolve(new File(scriptCheckout.getRemote()), path);
+            if (!travisFile.isFile()) {
+                throw new FileNotFoundException(travisFile.getPath());
+            }
+            return new FilePath(travisFile).readToString();
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Resolves a path within a checkout, refusing symbolic links and anything that ends up outside the checkout.
+     *
+     * @param checkout The root of the checkout.
+     * @param path The path, relative to the root.
+     * @return The file.
+     * @throws IOException if the path is or goes through a symbolic link, or isn't inside the checkout.
+     */
+    static File resolve(File checkout, String path) throws IOException {
+        File root = checkout.getCanonicalFile();
+        File file = new File(root, path);
+        for (File f = file; f != null && !f.equals(root); f = f.getParentFile()) {
+            if (Util.isSymlink(f)) {
+                throw new IOException(path + " is a symbolic link, or inside one, so can't be read from the Pipeline "
+                        + "script checkout");
+            }
+        }
+        File canonical = file.getCanonicalFile();
+        for (File f = canonical; ; f = f.getParentFile()) {
+            if (f == null) {
+                throw new IOException(path + " is outside the Pipeline script checkout");
+            }
+            if (f.equals(root)) {
+                return canonical;
+            }
+        }
+    }
+}
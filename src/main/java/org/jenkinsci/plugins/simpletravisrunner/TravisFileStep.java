@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import com.google.inject.Inject;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Reads a ".travis.yml" from the checkout the build's Jenkinsfile was loaded from, using {@link TravisFileReader}.
+ * Used by the runner for the "lightweight" option. A rerun gets the contents the original build ran instead, from its
+ * {@link TravisRerunCause}. Runs outside the CPS VM thread, as it may have to wait for another
+ * build to finish checking out its Jenkinsfile.
+ */
+public class TravisFileStep extends AbstractStepImpl {
+    private final String path;
+
+    /**
+     * @param path The path to the file, relative to the root of the repository.
+     */
+    @DataBoundConstructor
+    public TravisFileStep(String path) {
+        this.path = path;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisFile";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Read a file from the Pipeline script checkout";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousNonBlockingStepExecution<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisFileStep step;
+        @StepContextParameter private transient TaskListener listener;
+        @StepContextParameter private transient Run<?,?> run;
+
+        @Override
+        protected String run() throws Exception {
+            TravisRerunCause rerun = run.getCause(TravisRerunCause.class);
+            if (rerun != null) {
+                return rerun.getTravisYml();
+            }
+            return TravisFileReader.readFromScriptCheckout(run, step.getPath(), listener);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The env matrix of a ".travis.yml": every combination of the env and language runtime axes, minus anything matching a
+ * "matrix.exclude" entry, plus the "matrix.include" entries, with "matrix.allow_failures" entries flagged and the
+ * "paths" filters from "matrix.paths" and "matrix.include" entries attached.
+ *
+ * Combinations are generated lazily while iterating, and exclusions are checked against the axis positions before a
+ * combination's environment is even built, so excluded combinations never take up any memory.
+ */
+final class TravisMatrix implements Iterable<TravisCell> {
+    private final List<String> keys;
+    private final List<List<String>> values;
+    private final List<int[]> excludes = new ArrayList<int[]>();
+    private final List<List<String>> includes = new ArrayList<List<String>>();
+    private final List<List<String>> includePaths = new ArrayList<List<String>>();
+    private final List<List<String>> allowFailures = new ArrayList<List<String>>();
+    private final Map<List<String>,List<String>> pathFilters = new LinkedHashMap<List<String>,List<String>>();
+
+    /**
+     * @param axes a map of environment keys to lists of values for the key
+     * @param matrix The value of the "matrix" key in the Travis YAML, if any.
+     * @throws IllegalArgumentException if the "matrix" section isn't in a format we understand.
+     */
+    TravisMatrix(Map<String,List<String>> axes, Object matrix) throws IllegalArgumentException {
+        this.keys = new ArrayList<String>(axes.keySet());
+        this.values = new ArrayList<List<String>>(axes.values());
+
+        if (matrix instanceof Map) {
+            Map<?,?> matrixMap = (Map<?,?>) matrix;
+            for (List<String> exclude : getEnvEntries(matrixMap.get("exclude"))) {
+                int[] rule = toPositions(exclude);
+                if (rule != null) {
+                    excludes.add(rule);
+                }
+            }
+            includes.addAll(getEnvEntries(matrixMap.get("include")));
+            includePaths.addAll(getIncludePaths(matrixMap.get("include")));
+            allowFailures.addAll(getEnvEntries(matrixMap.get("allow_failures")));
+            addPathFilters(matrixMap.get("paths"));
+        }
+    }
+
+    /**
+     * Convenience for building a matrix straight from the "env" and "matrix" values of the Travis YAML.
+     *
+     * @param travisYaml A Map with the top-level entries in the YAML as keys and their contents as Objects.
+     * @return The matrix.
+     */
+    static TravisMatrix fromYaml(Map<String,Object> travisYaml) {
+        Map<String,List<String>> axes = new LinkedHashMap<String,List<String>>();
+        if (travisYaml.containsKey("env")) {
+            axes = TravisPlanCompiler.generateEnvAxes(travisYaml.get("env"));
+        }
+        // Language runtime axes become env axes too, using the variables Travis sets for them.
+        for (Map.Entry<String,String> runtime : TravisPlan.RUNTIME_AXES.entrySet()) {
+            if (travisYaml.get(runtime.getKey()) != null && !axes.containsKey(runtime.getValue())) {
+                axes.put(runtime.getValue(), new ArrayList<String>(new LinkedHashSet<String>(
+                        TravisPlanCompiler.getYamlStringOrListAsList(travisYaml.get(runtime.getKey())))));
+            }
+        }
+        return new TravisMatrix(axes, travisYaml.get("matrix"));
+    }
+
+    /**
+     * @return The names of all the environment variables set by the matrix, from both the axes and "matrix.include".
+     */
+    List<String> getKeys() {
+        Set<String> allKeys = new LinkedHashSet<String>(keys);
+        for (List<String> include : includes) {
+            for (String assignment : include) {
+                allKeys.add(assignment.split("=", 2)[0]);
+            }
+        }
+        return new ArrayList<String>(allKeys);
+    }
+
+    /**
+     * @return All the cells of the matrix, in order - axis combinations first, with the first axis varying fastest,
+     *         followed by the "matrix.include" entries. A "matrix.include" entry repeating an earlier environment is
+     *         run again, as Travis does, so it's given a name of its own.
+     */
+    List<TravisCell> getCells() {
+        List<TravisCell> cells = new ArrayList<TravisCell>();
+        Map<String,Integer> seen = new HashMap<String,Integer>();
+        for (TravisCell cell : this) {
+            Integer count = seen.get(cell.getName());
+            seen.put(cell.getName(), count == null ? 1 : count + 1);
+            cells.add(count == null ? cell : cell.withName(cell.getName() + " #" + (count + 1)));
+        }
+        return cells;
+    }
+
+    @Override
+    public Iterator<TravisCell> iterator() {
+        return new CellIterator();
+    }
+
+    private TravisCell toCell(List<String> env, List<String> ownPaths) {
+        boolean allowFailure = false;
+        for (List<String> entry : allowFailures) {
+            if (env.containsAll(entry)) {
+                allowFailure = true;
+                break;
+            }
+        }
+        List<String> paths = new ArrayList<String>(ownPaths);
+        for (Map.Entry<List<String>,List<String>> filter : pathFilters.entrySet()) {
+            if (env.containsAll(filter.getKey())) {
+                paths.addAll(filter.getValue());
+            }
+        }
+        return new TravisCell(env, allowFailure, paths);
+    }
+
+    /**
+     * Records the "paths" of each entry in "matrix.paths" that has "paths" and an "env" or language runtime, to apply to
+     * every cell whose environment contains that entry's assignments.
+     *
+     * @param matrixEntries The list of entries, if any.
+     * @throws IllegalArgumentException if the entries aren't in a format we understand.
+     */
+    private void addPathFilters(Object matrixEntries) throws IllegalArgumentException {
+        if (matrixEntries instanceof List) {
+            for (Object entry : (List<?>) matrixEntries) {
+                if (entry instanceof Map && ((Map<?,?>) entry).get("paths") != null
+                        && !getAssignments((Map<?,?>) entry).isEmpty()) {
+                    List<String> env = getAssignments((Map<?,?>) entry);
+                    List<String> paths = pathFilters.get(env);
+                    if (paths == null) {
+                        paths = new ArrayList<String>();
+                        pathFilters.put(env, paths);
+                    }
+                    paths.addAll(TravisPlanCompiler.getYamlStringOrListAsList(((Map<?,?>) entry).get("paths")));
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the value of "matrix.include" and returns the "paths" of each entry {@link #getEnvEntries} keeps, so they
+     * only apply to the cell built from that entry.
+     *
+     * @param matrixEntries The list of entries, if any.
+     * @return The paths for each entry with an "env", empty for entries without "paths".
+     * @throws IllegalArgumentException if the entries aren't in a format we understand.
+     */
+    private static List<List<String>> getIncludePaths(Object matrixEntries) throws IllegalArgumentException {
+        List<List<String>> entries = new ArrayList<List<String>>();
+        if (matrixEntries instanceof List) {
+            for (Object entry : (List<?>) matrixEntries) {
+                if (entry instanceof Map && !getAssignments((Map<?,?>) entry).isEmpty()) {
+                    Object paths = ((Map<?,?>) entry).get("paths");
+                    entries.add(paths != null ? TravisPlanCompiler.getYamlStringOrListAsList(paths)
+                            : Collections.<String>emptyList());
+                }
+            }
+        }
+        return entries;
+    }
+
+    private boolean isExcluded(int[] positions) {
+        for (int[] exclude : excludes) {
+            boolean matches = true;
+            for (int i = 0; i < positions.length && matches; i++) {
+                matches = exclude[i] < 0 || exclude[i] == positions[i];
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Converts an exclusion's assignments to the value positions it matches on each axis, with -1 for any value.
+     *
+     * @param assignments "KEY=value" strings.
+     * @return The positions, or null if the exclusion can't match any combination of the axes.
+     */
+    private int[] toPositions(List<String> assignments) {
+        int[] positions = new int[keys.size()];
+        Arrays.fill(positions, -1);
+        for (String assignment : assignments) {
+            String[] parts = assignment.split("=", 2);
+            int axis = keys.indexOf(parts[0]);
+            if (parts.length != 2 || axis < 0) {
+                return null;
+            }
+            int value = values.get(axis).indexOf(parts[1]);
+            if (value < 0 || (positions[axis] >= 0 && positions[axis] != value)) {
+                return null;
+            }
+            positions[axis] = value;
+        }
+        return assignments.isEmpty() ? null : positions;
+    }
+
+    /**
+     * Takes the value of "matrix.include", "matrix.exclude" or "matrix.allow_failures" and returns the "env" and
+     * language runtimes of each entry as a list of "KEY=value" strings. Entries with neither are ignored, since only
+     * env and language runtime axes are supported.
+     *
+     * @param matrixEntries The list of entries, if any.
+     * @return The assignments for each entry with an "env".
+     * @throws IllegalArgumentException if the entries aren't in a format we understand.
+     */
+    private static List<List<String>> getEnvEntries(Object matrixEntries) throws IllegalArgumentException {
+        if (matrixEntries == null) {
+            return Collections.emptyList();
+        }
+        if (!(matrixEntries instanceof List)) {
+            throw new IllegalArgumentException("Bad format of YAML - found " + matrixEntries.getClass().getName()
+                    + " when expecting a list of matrix entries");
+        }
+        List<List<String>> entries = new ArrayList<List<String>>();
+        for (Object entry : (List<?>) matrixEntries) {
+            if (entry instanceof Map) {
+                List<String> assignments = getAssignments((Map<?,?>) entry);
+                if (!assignments.isEmpty()) {
+                    entries.add(assignments);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Converts the "env" and any language runtimes of a matrix entry into "KEY=value" strings.
+     *
+     * @param entry The matrix entry. Its "env" is either a String or a List of Strings, each with whitespace-separated
+     *              assignments, and its language runtimes, such as "jdk", are single values.
+     * @return The assignments, with any quotes around each removed.
+     * @throws IllegalArgumentException if the "env" isn't in a format we understand.
+     */
+    private static List<String> getAssignments(Map<?,?> entry) throws IllegalArgumentException {
+        List<String> assignments = new ArrayList<String>();
+        if (entry.get("env") != null) {
+            for (String line : TravisPlanCompiler.getYamlStringOrListAsList(entry.get("env"))) {
+                for (String assignment : line.trim().split("\\s+")) {
+                    if (!assignment.isEmpty()) {
+                        assignments.add(TravisPlanCompiler.stripLeadingTrailingQuotes(assignment));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String,String> runtime : TravisPlan.RUNTIME_AXES.entrySet()) {
+            if (entry.get(runtime.getKey()) != null) {
+                assignments.add(runtime.getValue() + "=" + entry.get(runtime.getKey()));
+            }
+        }
+        return assignments;
+    }
+
+    /**
+     * Walks the axis combinations like an odometer, skipping excluded ones, and then the inclusions.
+     */
+    private final class CellIterator implements Iterator<TravisCell> {
+        private final int[] positions = new int[keys.size()];
+        private boolean combinationsDone = keys.isEmpty();
+        private int nextInclude = 0;
+        private TravisCell next;
+
+        private CellIterator() {
+            for (List<String> axisValues : values) {
+                if (axisValues.isEmpty()) {
+                    combinationsDone = true;
+                }
+            }
+            next = computeNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public TravisCell next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            TravisCell cell = next;
+            next = computeNext();
+            return cell;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private TravisCell computeNext() {
+            while (!combinationsDone) {
+                boolean excluded = isExcluded(positions);
+                List<String> env = excluded ? null : currentEnv();
+                advance();
+                if (!excluded) {
+                    return toCell(env, Collections.<String>emptyList());
+                }
+            }
+            if (nextInclude < includes.size()) {
+                TravisCell cell = toCell(includes.get(nextInclude), includePaths.get(nextInclude));
+                nextInclude++;
+                return cell;
+            }
+            return null;
+        }
+
+        private List<String> currentEnv() {
+            List<String> env = new ArrayList<String>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                env.add(keys.get(i) + "=" + values.get(i).get(positions[i]));
+            }
+            return env;
+        }
+
+        private void advance() {
+            int axis = 0;
+            while (axis < keys.size() && ++positions[axis] == values.get(axis).size()) {
+                positions[axis] = 0;
+                axis++;
+            }
+            if (axis == keys.size()) {
+                combinationsDone = true;
+            }
+        }
+    }
+}
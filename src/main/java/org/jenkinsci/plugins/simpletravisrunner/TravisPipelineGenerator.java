@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates a static Jenkinsfile equivalent to running a {@link TravisPlan} with simpleTravisRunner, so the result can
+ * be committed and run directly, without reading and interpreting the ".travis.yml" on every build.
+ *
+ * The generated script has an explicit "parallel" branch for each env matrix execution, and runs each phase in a
+ * single batched "sh" step, as with the "batch" option. Otherwise it does what the runner does: each execution starts
+ * on its own node from the shared setup, if any, without a checkout of its own, and a command timing out is a failure
+ * rather than an abort. Language runtimes are still installed with the
+ * "simpleTravisRuntimes" step, but aren't used to pick nodes. The "maxParallel" option isn't supported, since it
+ * depends on the runner scheduling executions as they finish, and timings aren't recorded.
+ */
+public final class TravisPipelineGenerator {
+    private static final String INDENT = "    ";
+
+    /**
+     * The runner's "withTimeout": a "timeout" step which fails, rather than aborting, when the time is up, so a hung
+     * allowed failure only marks the build as unstable.
+     */
+    private static final String TIMEOUT_FUNCTION =
+            "def travisTimeout(int minutes, String description, Closure body) {\n" +
+            INDENT + "long deadline = System.currentTimeMillis() + minutes * 60000L\n" +
+            INDENT + "try {\n" +
+            INDENT + INDENT + "timeout(time: minutes, unit: 'MINUTES', body)\n" +
+            INDENT + "} catch (InterruptedException e) {\n" +
+            INDENT + INDENT + "if (System.currentTimeMillis() < deadline) {\n" +
+            INDENT + INDENT + INDENT + "throw e\n" +
+            INDENT + INDENT + "}\n" +
+            INDENT + INDENT + "error \"Timed out after ${minutes} minutes: ${description}\"\n" +
+            INDENT + "}\n" +
+            "}\n";
+
+    private TravisPipelineGenerator() {
+    }
+
+    /**
+     * Generates the Jenkinsfile for a plan.
+     *
+     * @param plan The compiled contents of the ".travis.yml" file.
+     * @param config The same options as simpleTravisRunner takes: "label", "timeout", "failFast", "allowFailures",
+     *               "shareSetup" and "cache" are used, the rest are ignored.
+     * @return The contents of the Jenkinsfile.
+     */
+    public static String generate(TravisPlan plan, Map<String,?> config) {
+        String label = (String) config.get("label");
+        int timeout = config.get("timeout") != null ? ((Number) config.get("timeout")).intValue() : 50;
+        boolean cache = config.get("cache") != Boolean.FALSE && !plan.getCacheDirectories().isEmpty();
+
+        StringBuilder s = new StringBuilder();
+        s.append("// Generated from .travis.yml by simpleTravisRunner - regenerate it rather than editing it.\n");
+        s.append(TIMEOUT_FUNCTION);
+
+        List<TravisCell> cells = plan.getCells();
+        if (cells.isEmpty()) {
+            s.append(node(label)).append(" {\n");
+            s.append(INDENT).append("checkout scm\n");
+            appendSteps(s, INDENT, plan, timeout, cache, "", false);
+            s.append("}\n");
+            return s.toString();
+        }
+
+        TravisPlan cellPlan = plan;
+        boolean setupShared = false;
+        if (Boolean.TRUE.equals(config.get("shareSetup"))) {
+            List<String> sharedPhases = SharedSetupPhases.find(plan);
+            if (!sharedPhases.isEmpty()) {
+                s.append(node(label)).append(" {\n");
+                s.append(INDENT).append("checkout scm\n");
+                if (cache) {
+                    appendCache(s, INDENT, plan, "restore", "shared-setup");
+                }
+                for (String phase : sharedPhases) {
+                    s.append(INDENT).append("stage ")
+                            .append(literal(phase.equals("install") ? "Travis Shared Install" : "Travis Shared Before Install"))
+                            .append('\n');
+                    appendPhase(s, INDENT, plan.getCommands(phase), timeout, false);
+                }
+                if (cache) {
+                    appendCache(s, INDENT, plan, "save", "shared-setup");
+                }
+                s.append(INDENT).append("stash name: 'simpleTravisRunner-shared-setup', includes: '**', excludes: ")
+                        .append(literal(SharedSetupPhases.stashExcludes(plan))).append('\n');
+                s.append("}\n");
+                cellPlan = plan.withoutPhases(sharedPhases);
+                setupShared = true;
+            }
+        }
+
+        s.append("stage 'Parallel Travis Execution'\n");
+        s.append("parallel(");
+        for (int c = 0; c < cells.size(); c++) {
+            TravisCell cell = cells.get(c);
+            String cellName = cell.getName();
+            boolean allowFailure = Boolean.TRUE.equals(config.get("allowFailures")) && cell.isAllowFailure();
+            String indent = INDENT + INDENT;
+
+            s.append(c > 0 ? ",\n" : "\n").append(INDENT).append(literal(cellName)).append(": {\n");
+            if (allowFailure) {
+                s.append(indent).append("try {\n");
+                indent += INDENT;
+            }
+            // As with the runner, the execution starts from the shared setup if there is one, and otherwise from an
+            // empty workspace.
+            s.append(indent).append(node(label)).append(" {\n");
+            if (setupShared) {
+                s.append(indent).append(INDENT).append("unstash 'simpleTravisRunner-shared-setup'\n");
+                if (cache) {
+                    appendCache(s, indent + INDENT, plan, "restore", "shared-setup");
+                }
+            }
+            String envIndent = indent + INDENT;
+            if (!cell.getRuntimes().isEmpty()) {
+                s.append(envIndent).append("withEnv(simpleTravisRuntimes(action: 'install', runtimes: ")
+                        .append(list(cell.getRuntimes())).append(")) {\n");
+                envIndent += INDENT;
+            }
+            s.append(envIndent).append("withEnv(").append(list(cell.getEnv())).append(") {\n");
+            appendSteps(s, envIndent + INDENT, cellPlan, timeout, cache && !setupShared, cellName, true);
+            s.append(envIndent).append("}\n");
+            if (!cell.getRuntimes().isEmpty()) {
+                s.append(indent).append(INDENT).append("}\n");
+            }
+            s.append(indent).append("}\n");
+            if (allowFailure) {
+                indent = INDENT + INDENT;
+                s.append(indent).append("} catch (InterruptedException e) {\n");
+                s.append(indent).append(INDENT).append("throw e\n");
+                s.append(indent).append("} catch (Exception e) {\n");
+                s.append(indent).append(INDENT).append("echo \"Allowed failure in ").append(escapeGString(cellName))
+                        .append(": ${e}\"\n");
+                s.append(indent).append(INDENT).append("currentBuild.result = 'UNSTABLE'\n");
+                s.append(indent).append("}\n");
+            }
+            s.append(INDENT).append("}");
+        }
+        if (Boolean.TRUE.equals(config.get("failFast"))) {
+            s.append(",\n").append(INDENT).append("failFast: true");
+        }
+        s.append("\n)\n");
+        return s.toString();
+    }
+
+    /**
+     * Appends the steps the runner's "executeSteps" would run for a plan.
+     */
+    private static void appendSteps(StringBuilder s, String indent, TravisPlan plan, int timeout, boolean cache,
+                                    String cellName, boolean inParallel) {
+        if (cache) {
+            appendCache(s, indent, plan, "restore", cellName);
+        }
+
+        // Fail fast on any errors in before_install, install or before_script
+        appendStagedPhase(s, indent, plan, "before_install", "Travis Before Install", timeout, false, inParallel);
+        appendStagedPhase(s, indent, plan, "install", "Travis Install", timeout, false, inParallel);
+        appendStagedPhase(s, indent, plan, "before_script", "Travis Before Script", timeout, false, inParallel);
+
+        s.append(indent).append("def failedScript = false\n");
+        s.append(indent).append("try {\n");
+        appendStagedPhase(s, indent + INDENT, plan, "script", "Travis Script", timeout, true, inParallel);
+        s.append(indent).append("} catch (Exception e) {\n");
+        s.append(indent).append(INDENT).append("echo \"Error on script step: ${e}\"\n");
+        s.append(indent).append(INDENT).append("failedScript = true\n");
+        s.append(indent).append("}\n");
+
+        if (cache) {
+            appendCache(s, indent, plan, "save", cellName);
+        }
+
+        if (!plan.getDeploySteps().isEmpty()) {
+            s.append(indent).append("if (!failedScript) {\n");
+            for (String deployStep : plan.getDeploySteps()) {
+                s.append(indent).append(INDENT).append("echo ")
+                        .append(literal("Not executing '" + deployStep + "' - Travis-specific")).append('\n');
+            }
+            s.append(indent).append("}\n");
+        }
+
+        // Swallow any errors in after_*, as the runner does.
+        if (plan.hasPhase("after_failure") || plan.hasPhase("after_success") || plan.hasPhase("after_script")) {
+            s.append(indent).append("try {\n");
+            if (plan.hasPhase("after_failure") || plan.hasPhase("after_success")) {
+                s.append(indent).append(INDENT).append("if (failedScript) {\n");
+                appendStagedPhase(s, indent + INDENT + INDENT, plan, "after_failure", "Travis After Failure", timeout,
+                        false, inParallel);
+                s.append(indent).append(INDENT).append("} else {\n");
+                appendStagedPhase(s, indent + INDENT + INDENT, plan, "after_success", "Travis After Success", timeout,
+                        false, inParallel);
+                s.append(indent).append(INDENT).append("}\n");
+            }
+            appendStagedPhase(s, indent + INDENT, plan, "after_script", "Travis After Script", timeout, false,
+                    inParallel);
+            s.append(indent).append("} catch (Exception e) {\n");
+            s.append(indent).append(INDENT).append("echo \"Error on after step(s), ignoring: ${e}\"\n");
+            s.append(indent).append("}\n");
+        }
+
+        s.append(indent).append("if (failedScript) {\n");
+        s.append(indent).append(INDENT).append("error 'Failing build due to failure of script step.'\n");
+        s.append(indent).append("}\n");
+    }
+
+    private static void appendStagedPhase(StringBuilder s, String indent, TravisPlan plan, String phase,
+                                          String stageName, int timeout, boolean continueOnFailure,
+                                          boolean inParallel) {
+        if (plan.hasPhase(phase)) {
+            if (!inParallel) {
+                s.append(indent).append("stage ").append(literal(stageName)).append('\n');
+            }
+            appendPhase(s, indent, plan.getCommands(phase), timeout, continueOnFailure);
+        }
+    }
+
+    /**
+     * Appends a single batched "sh" step for a phase, with the same overall timeout as the runner uses.
+     */
+    private static void appendPhase(StringBuilder s, String indent, List<String> commands, int timeout,
+                                    boolean continueOnFailure) {
+        if (commands.isEmpty()) {
+            return;
+        }
+        s.append(indent).append("travisTimeout(").append(timeout * commands.size()).append(", ")
+                .append(literal(commands.size() + " commands")).append(") {\n");
+        s.append(indent).append(INDENT).append("sh '''")
+                .append(escapeMultiline(BatchedShellScript.generate(commands, timeout, continueOnFailure)))
+                .append("'''\n");
+        s.append(indent).append("}\n");
+    }
+
+    private static void appendCache(StringBuilder s, String indent, TravisPlan plan, String action, String cellName) {
+        s.append(indent).append("simpleTravisCache action: ").append(literal(action))
+                .append(", key: (env.BRANCH_NAME ?: 'default') + ").append(literal("\n" + cellName))
+                .append(", directories: ").append(list(plan.getCacheDirectories())).append('\n');
+    }
+
+    private static String node(String label) {
+        return label == null ? "node" : "node(" + literal(label) + ")";
+    }
+
+    /**
+     * Renders a list of strings as a Groovy list literal.
+     */
+    static String list(List<String> values) {
+        StringBuilder s = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            s.append(i > 0 ? ", " : "").append(literal(values.get(i)));
+        }
+        return s.append(']').toString();
+    }
+
+    /**
+     * Quotes a string as a single-line, single-quoted Groovy string literal.
+     */
+    static String literal(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'").replace("\n", "\\n").replace("\r", "\\r") + "'";
+    }
+
+    /**
+     * Escapes a string for use inside a triple-single-quoted Groovy string literal. Single quotes only need escaping
+     * where they could run into the closing quotes, so the generated scripts stay readable.
+     */
+    static String escapeMultiline(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                escaped.append("\\\\");
+            } else if (c == '\'' && (i + 1 == value.length() || value.charAt(i + 1) == '\'')) {
+                escaped.append("\\'");
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Escapes a string for use inside a double-quoted Groovy string literal, without any interpolation.
+     */
+    static String escapeGString(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("$", "\\$").replace("\n", "\\n");
+    }
+
+    /**
+     * Command-line entry point, printing the Jenkinsfile for a ".travis.yml" file to standard output.
+     *
+     * Usage: TravisPipelineGenerator [--label expr] [--timeout minutes] [--fail-fast] [--allow-failures]
+     * [--share-setup] [--no-cache] [path/to/.travis.yml]
+     *
+     * @param args The command-line arguments.
+     * @throws IOException if the file can't be read.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String,Object> config = new HashMap<String,Object>();
+        String path = ".travis.yml";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--label") && i + 1 < args.length) {
+                config.put("label", args[++i]);
+            } else if (args[i].equals("--timeout") && i + 1 < args.length) {
+                config.put("timeout", Integer.valueOf(args[++i]));
+            } else if (args[i].equals("--fail-fast")) {
+                config.put("failFast", true);
+            } else if (args[i].equals("--allow-failures")) {
+                config.put("allowFailures", true);
+            } else if (args[i].equals("--share-setup")) {
+                config.put("shareSetup", true);
+            } else if (args[i].equals("--no-cache")) {
+                config.put("cache", false);
+            } else if (args[i].startsWith("--")) {
+                System.err.println("Usage: TravisPipelineGenerator [--label expr] [--timeout minutes] [--fail-fast] "
+                        + "[--allow-failures] [--share-setup] [--no-cache] [path/to/.travis.yml]");
+                System.exit(2);
+            } else {
+                path = args[i];
+            }
+        }
+        System.out.print(generate(TravisPlanCompiler.compile(FileUtils.readFileToString(new File(path), "UTF-8")),
+                config));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import com.google.inject.Inject;
+import hudson.Extension;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates a Jenkinsfile for a ".travis.yml" with {@link TravisPipelineGenerator}. Used by the runner's "toPipeline".
+ */
+public class TravisPipelineStep extends AbstractStepImpl {
+    private final String travisYml;
+    private final String label;
+    private final int timeout;
+    private final boolean shareSetup;
+    private final boolean failFast;
+    private final boolean allowFailures;
+    private final boolean cache;
+
+    /**
+     * @param travisYml The contents of the ".travis.yml" file.
+     * @param label The "label" option, if any.
+     * @param timeout The "timeout" option, in minutes.
+     * @param shareSetup The "shareSetup" option.
+     * @param failFast The "failFast" option.
+     * @param allowFailures The "allowFailures" option.
+     * @param cache The "cache" option.
+     */
+    @DataBoundConstructor
+    public TravisPipelineStep(String travisYml, String label, int timeout, boolean shareSetup, boolean failFast,
+                              boolean allowFailures, boolean cache) {
+        this.travisYml = travisYml;
+        this.label = label;
+        this.timeout = timeout;
+        this.shareSetup = shareSetup;
+        this.failFast = failFast;
+        this.allowFailures = allowFailures;
+        this.cache = cache;
+    }
+
+    public String getTravisYml() {
+        return travisYml;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public boolean isShareSetup() {
+        return shareSetup;
+    }
+
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public boolean isAllowFailures() {
+        return allowFailures;
+    }
+
+    public boolean isCache() {
+        return cache;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisPipeline";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Generate a Jenkinsfile for a .travis.yml";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousStepExecution<String> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisPipelineStep step;
+
+        @Override
+        protected String run() throws Exception {
+            Map<String,Object> config = new HashMap<String,Object>();
+            config.put("label", step.getLabel());
+            config.put("timeout", step.getTimeout());
+            config.put("shareSetup", step.isShareSetup());
+            config.put("failFast", step.isFailFast());
+            config.put("allowFailures", step.isAllowFailures());
+            config.put("cache", step.isCache());
+            return TravisPipelineGenerator.generate(TravisPlanCache.get(step.getTravisYml()), config);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable execution plan for a ".travis.yml" file: the commands for each supported phase, and the env matrix
+ * executions to run them in. Built by {@link TravisPlanCompiler}.
+ *
+ * The Groovy side of the runner only walks this, so this is all that ends up captured in its closures and saved with
+ * the Pipeline's program state, rather than the raw parsed YAML.
+ */
+public final class TravisPlan implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The phases that are executed, in the order they're run.
+     */
+    public static final List<String> PHASES = Collections.unmodifiableList(Arrays.asList(
+            "before_install", "install", "before_script", "script", "after_failure", "after_success", "after_script"));
+
+    /**
+     * The deploy-related phases, which rely on Travis internals and so are not executed.
+     */
+    public static final List<String> DEPLOY_PHASES = Collections.unmodifiableList(Arrays.asList(
+            "before_deploy", "deploy", "after_deploy"));
+
+    /**
+     * The language runtime axes, such as "jdk", and the environment variables Travis sets for them, which they're
+     * expanded into in the env matrix.
+     */
+    public static final Map<String,String> RUNTIME_AXES;
+
+    static {
+        Map<String,String> axes = new LinkedHashMap<String,String>();
+        axes.put("jdk", "TRAVIS_JDK_VERSION");
+        axes.put("python", "TRAVIS_PYTHON_VERSION");
+        axes.put("node_js", "TRAVIS_NODE_VERSION");
+        axes.put("rvm", "TRAVIS_RUBY_VERSION");
+        RUNTIME_AXES = Collections.unmodifiableMap(axes);
+    }
+
+    private final Map<String,List<String>> phases;
+    private final List<String> deploySteps;
+    private final List<String> axisKeys;
+    private final List<TravisCell> cells;
+    private final List<String> cacheDirectories;
+    private final List<String> paths;
+
+    TravisPlan(Map<String,List<String>> phases, List<String> deploySteps, List<String> axisKeys, List<TravisCell> cells,
+               List<String> cacheDirectories, List<String> paths) {
+        Map<String,List<String>> copiedPhases = new LinkedHashMap<String,List<String>>();
+        for (Map.Entry<String,List<String>> phase : phases.entrySet()) {
+            copiedPhases.put(phase.getKey(), Collections.unmodifiableList(new ArrayList<String>(phase.getValue())));
+        }
+        this.phases = Collections.unmodifiableMap(copiedPhases);
+        this.deploySteps = Collections.unmodifiableList(new ArrayList<String>(deploySteps));
+        this.axisKeys = Collections.unmodifiableList(new ArrayList<String>(axisKeys));
+        this.cells = Collections.unmodifiableList(new ArrayList<TravisCell>(cells));
+        this.cacheDirectories = Collections.unmodifiableList(new ArrayList<String>(cacheDirectories));
+        this.paths = Collections.unmodifiableList(new ArrayList<String>(paths));
+    }
+
+    /**
+     * @param phase The name of the phase, e.g. "install".
+     * @return true if the file contains the phase.
+     */
+    public boolean hasPhase(String phase) {
+        return phases.containsKey(phase);
+    }
+
+    /**
+     * @param phase The name of the phase, e.g. "install".
+     * @return The commands for the phase, or an empty list if the file doesn't contain it.
+     */
+    public List<String> getCommands(String phase) {
+        List<String> commands = phases.get(phase);
+        return commands != null ? commands : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return The deploy-related phases present in the file, which won't be executed.
+     */
+    public List<String> getDeploySteps() {
+        return deploySteps;
+    }
+
+    /**
+     * @return The names of the environment variables in the env matrix, if any.
+     */
+    public List<String> getAxisKeys() {
+        return axisKeys;
+    }
+
+    /**
+     * @return The env matrix executions, empty if there is no env matrix.
+     */
+    public List<TravisCell> getCells() {
+        return cells;
+    }
+
+    /**
+     * @return All the language runtimes used by the env matrix executions, as "axis=version" strings, e.g. "jdk=openjdk8".
+     */
+    public List<String> getRuntimes() {
+        Set<String> runtimes = new LinkedHashSet<String>();
+        for (TravisCell cell : cells) {
+            runtimes.addAll(cell.getRuntimes());
+        }
+        return new ArrayList<String>(runtimes);
+    }
+
+    /**
+     * @return The directories listed under "cache: directories:", if any.
+     */
+    public List<String> getCacheDirectories() {
+        return cacheDirectories;
+    }
+
+    /**
+     * @return The top-level "paths" filter, if any.
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @param changedPaths The paths changed in the build, or null if they aren't known.
+     * @return false if the file has a top-level "paths" filter and none of the changed paths match it.
+     */
+    public boolean isAffectedBy(Collection<String> changedPaths) {
+        return PathFilter.matches(getPaths(), changedPaths);
+    }
+
+    /**
+     * @param skipped Phases to leave out.
+     * @return A copy of this plan without the given phases.
+     */
+    public TravisPlan withoutPhases(List<String> skipped) {
+        Map<String,List<String>> remaining = new LinkedHashMap<String,List<String>>(phases);
+        for (String phase : skipped) {
+            remaining.remove(phase);
+        }
+        return new TravisPlan(remaining, deploySteps, axisKeys, cells, cacheDirectories, paths);
+    }
+}
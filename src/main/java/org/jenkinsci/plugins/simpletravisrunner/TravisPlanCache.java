@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.PluginWrapper;
+import hudson.Util;
+import jenkins.model.Jenkins;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Master-side cache of compiled {@link TravisPlan}s, so that builds of an unchanged ".travis.yml" skip parsing and
+ * matrix expansion entirely. Plans are keyed by a hash of the file contents and the plugin version, and the least
+ * recently used plans are evicted once there are more than {@link #SIZE} of them.
+ *
+ * Sharing plans between builds is safe since they're immutable.
+ */
+public final class TravisPlanCache {
+    private static final Logger LOGGER = Logger.getLogger(TravisPlanCache.class.getName());
+
+    /**
+     * Maximum number of plans to keep.
+     */
+    static final int SIZE = Integer.getInteger(TravisPlanCache.class.getName() + ".size", 64);
+
+    private static final Map<String,TravisPlan> PLANS = new LinkedHashMap<String,TravisPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,TravisPlan> eldest) {
+            return size() > SIZE;
+        }
+    };
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static String pluginVersion;
+
+    private TravisPlanCache() {
+    }
+
+    /**
+     * Returns the plan for the given ".travis.yml" contents, compiling and caching it if it's not already cached.
+     *
+     * @param travisYml The String contents of a ".travis.yml" file.
+     * @return The plan.
+     * @throws IllegalArgumentException if the YAML isn't in a format we understand.
+     */
+    public static TravisPlan get(String travisYml) throws IllegalArgumentException {
+        String key = keyFor(travisYml);
+        TravisPlan plan;
+        synchronized (PLANS) {
+            plan = PLANS.get(key);
+        }
+        if (plan != null) {
+            HITS.incrementAndGet();
+            return plan;
+        }
+
+        MISSES.incrementAndGet();
+        LOGGER.log(Level.FINE, "Compiling plan for {0}", key);
+        plan = TravisPlanCompiler.compile(travisYml);
+        synchronized (PLANS) {
+            PLANS.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @return The number of times a plan was found in the cache.
+     */
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    /**
+     * @return The number of times a plan had to be compiled.
+     */
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    /**
+     * @return The number of plans currently cached.
+     */
+    public static int size() {
+        synchronized (PLANS) {
+            return PLANS.size();
+        }
+    }
+
+    /**
+     * Empties the cache and resets the counters.
+     */
+    public static void clear() {
+        synchronized (PLANS) {
+            PLANS.clear();
+        }
+        HITS.set(0);
+        MISSES.set(0);
+    }
+
+    /**
+     * @param travisYml The String contents of a ".travis.yml" file.
+     * @return The cache key for the contents - a SHA-256 hash of the contents and the plugin version.
+     */
+    static String keyFor(String travisYml) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(getPluginVersion().getBytes(Charset.forName("UTF-8")));
+            digest.update((byte) 0);
+            digest.update(travisYml.getBytes(Charset.forName("UTF-8")));
+            return Util.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static synchronized String getPluginVersion() {
+        if (pluginVersion == null) {
+            Jenkins jenkins = Jenkins.getInstance();
+            PluginWrapper plugin = jenkins == null ? null : jenkins.getPluginManager().whichPlugin(TravisPlanCache.class);
+            if (plugin == null) {
+                // Not running as an installed plugin, e.g. in unit tests - don't remember this.
+                return "unknown";
+            }
+            pluginVersion = plugin.getVersion();
+        }
+        return pluginVersion;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the contents of a ".travis.yml" file into a {@link TravisPlan}.
+ *
+ * This runs as plain Java rather than as CPS-transformed, sandboxed Groovy, so parsing the YAML and expanding the env
+ * matrix don't pay for script-security checks and don't leave the parsed YAML in the Pipeline's program state.
+ */
+public final class TravisPlanCompiler {
+    private TravisPlanCompiler() {
+    }
+
+    /**
+     * Given a ".travis.yml" formatted String (already read from a file), parses it as YAML and compiles it to a plan.
+     *
+     * @param travisYml The String contents of a ".travis.yml" file.
+     * @return The plan.
+     * @throws IllegalArgumentException if the YAML isn't in a format we understand.
+     */
+    public static TravisPlan compile(String travisYml) throws IllegalArgumentException {
+        Object loaded = new Yaml().load(travisYml);
+        if (!(loaded instanceof Map)) {
+            throw new IllegalArgumentException("Bad format of YAML - expected a map of Travis phases at the top level");
+        }
+        @SuppressWarnings("unchecked")
+        Map<String,Object> travisYaml = (Map<String,Object>) loaded;
+        return compile(travisYaml);
+    }
+
+    /**
+     * Compiles an already-parsed ".travis.yml" to a plan.
+     *
+     * @param travisYaml A Map with the top-level entries in the YAML as keys and their contents as Objects.
+     * @return The plan.
+     * @throws IllegalArgumentException if the YAML isn't in a format we understand.
+     */
+    static TravisPlan compile(Map<String,Object> travisYaml) throws IllegalArgumentException {
+        Map<String,List<String>> phases = new LinkedHashMap<String,List<String>>();
+        for (String phase : TravisPlan.PHASES) {
+            if (travisYaml.containsKey(phase)) {
+                phases.put(phase, getYamlStringOrListAsList(travisYaml.get(phase)));
+            }
+        }
+
+        List<String> deploySteps = new ArrayList<String>();
+        for (String deployStep : TravisPlan.DEPLOY_PHASES) {
+            if (travisYaml.containsKey(deployStep)) {
+                deploySteps.add(deployStep);
+            }
+        }
+
+        TravisMatrix matrix = TravisMatrix.fromYaml(travisYaml);
+
+        List<String> paths = travisYaml.get("paths") != null
+                ? getYamlStringOrListAsList(travisYaml.get("paths")) : Collections.<String>emptyList();
+
+        return new TravisPlan(phases, deploySteps, matrix.getKeys(), matrix.getCells(),
+                getCacheDirectories(travisYaml.get("cache")), paths);
+    }
+
+    /**
+     * Takes a YAML entry that could be either a single String or a List of Strings. If it's a single String, returns
+     * a new List with that String as the only element. If it's a List, returns its entries as Strings. If the entry is
+     * of any other type, throws an IllegalArgumentException.
+     *
+     * @param yamlEntry
+     * @return a list of Strings
+     * @throws IllegalArgumentException
+     */
+    static List<String> getYamlStringOrListAsList(Object yamlEntry) throws IllegalArgumentException {
+        if (yamlEntry instanceof String) {
+            return Collections.singletonList((String) yamlEntry);
+        } else if (yamlEntry instanceof List) {
+            List<String> entries = new ArrayList<String>();
+            for (Object entry : (List<?>) yamlEntry) {
+                entries.add(String.valueOf(entry));
+            }
+            return entries;
+        } else {
+            throw new IllegalArgumentException("Bad format of YAML - found "
+                    + (yamlEntry == null ? "null" : yamlEntry.getClass().getName())
+                    + " when expecting either 'String' or 'ArrayList'");
+        }
+    }
+
+    /**
+     * Takes the value of the 'cache' key in the Travis YAML and returns the directories listed under "directories".
+     * Language-specific caches, such as "cache: bundler", aren't supported and are ignored.
+     *
+     * @param travisCache
+     * @return a possibly-empty list of directories
+     * @throws IllegalArgumentException
+     */
+    static List<String> getCacheDirectories(Object travisCache) throws IllegalArgumentException {
+        List<String> directories = new ArrayList<String>();
+        List<?> entries = travisCache instanceof List ? (List<?>) travisCache : Collections.singletonList(travisCache);
+        for (Object entry : entries) {
+            if (entry instanceof Map && ((Map<?,?>) entry).get("directories") != null) {
+                directories.addAll(getYamlStringOrListAsList(((Map<?,?>) entry).get("directories")));
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Takes the value of the 'env' key in the Travis YAML and returns a map with the environment keys as the key and a
+     * list of specified values for the environment key as the value, both in the order they first appear.
+     *
+     * @param travisEnv
+     * @return a map of environment keys to lists of values for the key
+     */
+    static Map<String,List<String>> generateEnvAxes(Object travisEnv) {
+        Map<String,List<String>> envEntries = new LinkedHashMap<String,List<String>>();
+
+        for (String entryString : new LinkedHashSet<String>(getYamlStringOrListAsList(travisEnv))) {
+            String[] stringParts = stripLeadingTrailingQuotes(entryString).split("=");
+
+            if (stringParts.length == 2) {
+                List<String> values = envEntries.get(stringParts[0]);
+                if (values == null) {
+                    values = new ArrayList<String>();
+                    envEntries.put(stringParts[0], values);
+                }
+                values.add(stringParts[1]);
+            }
+        }
+
+        return envEntries;
+    }
+
+    /**
+     * Takes a string, and if it both begins and ends with double quotes or single quotes, returns it with those quotes removed.
+     * Otherwise, returns the original string.
+     *
+     * @param inputString
+     * @return either inputString with leading/trailing quotes removed or the original inputString.
+     */
+    static String stripLeadingTrailingQuotes(String inputString) {
+        if (inputString.length() >= 2 && ((inputString.startsWith("\"") && inputString.endsWith("\""))
+                || (inputString.startsWith("'") && inputString.endsWith("'")))) {
+            return inputString.substring(1, inputString.length() - 1);
+        } else {
+            return inputString;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import com.google.inject.Inject;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles a ".travis.yml" into a {@link TravisPlan}, through the {@link TravisPlanCache}, and returns what the runner
+ * needs from it as plain maps and lists, so the runner's sandboxed Groovy never calls into the plugin's classes.
+ *
+ * Also works out which matrix executions to run: a rerun only runs the ones which failed in the original build, using
+ * the ".travis.yml" contents that build ran, and executions whose "paths" filter doesn't match the build's changes are
+ * skipped, and recorded as {@link TravisTimingAction#SKIPPED}.
+ *
+ * The returned map has:
+ * <ul>
+ *     <li>"travisYml": the ".travis.yml" contents being run.</li>
+ *     <li>"affected": false if the top-level "paths" filter doesn't match the build's changes.</li>
+ *     <li>"matrix": true if there's an env matrix, even if all its executions are skipped.</li>
+ *     <li>"plan": the phases to run without a matrix, as a map with "phases" (phase name to commands),
+ *     "deploySteps" and "cacheDirectories".</li>
+ *     <li>"cellPlan": the same, without the "sharedPhases".</li>
+ *     <li>"sharedPhases": with "shareSetup", the setup phases to run once for all the matrix executions.</li>
+ *     <li>"stashExcludes": the exclude patterns for stashing the workspace after the "sharedPhases".</li>
+ *     <li>"cells": the matrix executions to run, each a map with "name", "env", "runtimes", "allowFailure" and
+ *     "logFile".</li>
+ *     <li>"runtimes": the language runtimes of all the matrix executions.</li>
+ *     <li>"logFile": the log file to use outside a matrix execution.</li>
+ * </ul>
+ */
+public class TravisPlanStep extends AbstractStepImpl {
+    private final String travisYml;
+    private final boolean shareSetup;
+    private final boolean longestFirst;
+
+    /**
+     * @param travisYml The contents of the ".travis.yml" file. Ignored for a rerun, which uses the contents the
+     *                  original build ran.
+     * @param shareSetup Whether to work out the "sharedPhases".
+     * @param longestFirst Whether to order the matrix executions by {@link TravisTimingAction#longestFirst}.
+     */
+    @DataBoundConstructor
+    public TravisPlanStep(String travisYml, boolean shareSetup, boolean longestFirst) {
+        this.travisYml = travisYml;
+        this.shareSetup = shareSetup;
+        this.longestFirst = longestFirst;
+    }
+
+    public String getTravisYml() {
+        return travisYml;
+    }
+
+    public boolean isShareSetup() {
+        return shareSetup;
+    }
+
+    public boolean isLongestFirst() {
+        return longestFirst;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisPlan";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Compile a Travis plan";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousNonBlockingStepExecution<Map<String,Object>> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisPlanStep step;
+        @StepContextParameter private transient TaskListener listener;
+        @StepContextParameter private transient Run<?,?> run;
+
+        @Override
+        protected Map<String,Object> run() throws Exception {
+            String travisYml = step.getTravisYml();
+            List<String> rerunCells = null;
+            TravisRerunCause rerun = run.getCause(TravisRerunCause.class);
+            if (rerun != null) {
+                travisYml = rerun.getTravisYml();
+                rerunCells = rerun.getCells();
+                listener.getLogger().println("Rerunning failed matrix executions " + rerunCells);
+            }
+            TravisPlan plan = TravisPlanCache.get(travisYml);
+
+            // A rerun runs the executions which failed in the original build, whatever changed since.
+            List<String> changedPaths = rerunCells == null ? ChangedPaths.forBuild(run) : null;
+
+            Map<String,TravisCell> cells = new LinkedHashMap<String,TravisCell>();
+            for (TravisCell cell : plan.getCells()) {
+                if (rerunCells != null && !rerunCells.contains(cell.getName())) {
+                    continue;
+                }
+                if (cell.isAffectedBy(changedPaths)) {
+                    cells.put(cell.getName(), cell);
+                } else {
+                    listener.getLogger().println("Skipping " + cell.getName()
+                            + " - none of the changed paths match its 'paths' filter");
+                    TravisTimingAction.record(run, cell.getName(), TravisTimingAction.SKIPPED, null,
+                            System.currentTimeMillis(), 0);
+                }
+            }
+            List<String> order = new ArrayList<String>(cells.keySet());
+            if (step.isLongestFirst()) {
+                order = TravisTimingAction.longestFirst(run, order);
+            }
+
+            List<String> sharedPhases = step.isShareSetup() ? SharedSetupPhases.find(plan) : new ArrayList<String>();
+
+            Map<String,Object> view = new HashMap<String,Object>();
+            view.put("travisYml", travisYml);
+            view.put("affected", plan.isAffectedBy(changedPaths));
+            view.put("matrix", !plan.getCells().isEmpty());
+            // The two share their lists, so they're only saved once in the program state.
+            Map<String,List<String>> commands = new LinkedHashMap<String,List<String>>();
+            for (String phase : TravisPlan.PHASES) {
+                if (plan.hasPhase(phase)) {
+                    commands.put(phase, new ArrayList<String>(plan.getCommands(phase)));
+                }
+            }
+            List<String> deploySteps = new ArrayList<String>(plan.getDeploySteps());
+            List<String> cacheDirectories = new ArrayList<String>(plan.getCacheDirectories());
+            view.put("plan", phases(commands, new ArrayList<String>(), deploySteps, cacheDirectories));
+            view.put("cellPlan", phases(commands, sharedPhases, deploySteps, cacheDirectories));
+            view.put("sharedPhases", sharedPhases);
+            view.put("stashExcludes", SharedSetupPhases.stashExcludes(plan));
+            List<Map<String,Object>> cellViews = new ArrayList<Map<String,Object>>();
+            for (String name : order) {
+                TravisCell cell = cells.get(name);
+                Map<String,Object> cellView = new HashMap<String,Object>();
+                cellView.put("name", name);
+                cellView.put("env", new ArrayList<String>(cell.getEnv()));
+                cellView.put("runtimes", cell.getRuntimes());
+                cellView.put("allowFailure", cell.isAllowFailure());
+                cellView.put("logFile", BatchedShellScript.logFileFor(name));
+                cellViews.add(cellView);
+            }
+            view.put("cells", cellViews);
+            view.put("runtimes", plan.getRuntimes());
+            view.put("logFile", BatchedShellScript.logFileFor(null));
+            return view;
+        }
+
+        /**
+         * @param commands The commands for each of the plan's phases.
+         * @param skipped Phases to leave out.
+         * @param deploySteps The plan's deploy steps.
+         * @param cacheDirectories The plan's cache directories.
+         * @return The phases, deploy steps and cache directories as a map.
+         */
+        private static Map<String,Object> phases(Map<String,List<String>> commands, List<String> skipped,
+                                                 List<String> deploySteps, List<String> cacheDirectories) {
+            Map<String,List<String>> phases = new LinkedHashMap<String,List<String>>(commands);
+            for (String phase : skipped) {
+                phases.remove(phase);
+            }
+            Map<String,Object> view = new HashMap<String,Object>();
+            view.put("phases", phases);
+            view.put("deploySteps", deploySteps);
+            view.put("cacheDirectories", cacheDirectories);
+            return view;
+        }
+    }
+}
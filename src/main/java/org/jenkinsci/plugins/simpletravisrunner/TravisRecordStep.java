@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import com.google.inject.Inject;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Run;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records timings in the build's {@link TravisTimingAction}, and failed matrix executions in its
+ * {@link TravisRerunAction}. The runner collects these as it goes and records them in batches, such as once per matrix
+ * execution, rather than running a step for every command.
+ */
+public class TravisRecordStep extends AbstractStepImpl {
+    private final List<List<Object>> timings;
+    private final List<String> failures;
+    private final String travisYml;
+
+    /**
+     * @param timings The timings, each a list of the matrix execution name, the phase, the command, the start time and
+     *                the duration in milliseconds, with "" rather than null for no matrix execution or command.
+     * @param failures The names of matrix executions which failed, or didn't get to finish.
+     * @param travisYml The contents of the ".travis.yml" file being run, to rerun the failures with.
+     */
+    @DataBoundConstructor
+    public TravisRecordStep(List<List<Object>> timings, List<String> failures, String travisYml) {
+        this.timings = timings != null ? new ArrayList<List<Object>>(timings) : new ArrayList<List<Object>>();
+        this.failures = failures != null ? new ArrayList<String>(failures) : new ArrayList<String>();
+        this.travisYml = travisYml;
+    }
+
+    public List<List<Object>> getTimings() {
+        return timings;
+    }
+
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    public String getTravisYml() {
+        return travisYml;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisRecord";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Record Travis timings and failed matrix executions";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousStepExecution<Void> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisRecordStep step;
+        @StepContextParameter private transient Run<?,?> run;
+
+        @Override
+        protected Void run() throws Exception {
+            for (List<Object> timing : step.getTimings()) {
+                TravisTimingAction.record(run, Util.fixEmpty((String) timing.get(0)), (String) timing.get(1),
+                        Util.fixEmpty((String) timing.get(2)), ((Number) timing.get(3)).longValue(),
+                        ((Number) timing.get(4)).longValue());
+            }
+            for (String cell : step.getFailures()) {
+                TravisRerunAction.recordFailure(run, step.getTravisYml(), cell);
+            }
+            return null;
+        }
+    }
+}
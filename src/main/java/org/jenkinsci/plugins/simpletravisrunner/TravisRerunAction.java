@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Item;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import hudson.model.queue.QueueTaskFuture;
+import jenkins.model.ParameterizedJobMixIn;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The matrix executions which failed in a build, or didn't get to finish, along with the ".travis.yml" contents it
+ * ran, so that just those executions can be run again in a new build from the build's "Rerun Failed Travis Cells" page.
+ * Failures of matrix executions listed in "matrix.allow_failures" aren't recorded when allowFailures is on.
+ *
+ * The new build gets a {@link TravisRerunCause}, and reuses the recorded ".travis.yml" contents - and so the cached
+ * plan - rather than reading the file again, so the matrix executions it runs are the same ones that failed.
+ */
+public class TravisRerunAction implements RunAction2 {
+    private final String travisYml;
+    // Added to from parallel branches while the build may be saved, so XStream mustn't see it change mid-write.
+    private final List<String> cells = new CopyOnWriteArrayList<String>();
+
+    private transient Run<?,?> run;
+
+    TravisRerunAction(String travisYml) {
+        this.travisYml = travisYml;
+    }
+
+    /**
+     * Records a failed matrix execution against a build, adding the action to it if needed.
+     *
+     * @param run The build.
+     * @param travisYml The String contents of the ".travis.yml" file the build is running.
+     * @param cell The name of the matrix execution.
+     */
+    static void recordFailure(Run<?,?> run, String travisYml, String cell) {
+        TravisRerunAction action;
+        synchronized (run) {
+            action = run.getAction(TravisRerunAction.class);
+            if (action == null) {
+                action = new TravisRerunAction(travisYml);
+                run.addAction(action);
+            }
+        }
+        action.add(cell);
+    }
+
+    private synchronized void add(String cell) {
+        if (!cells.contains(cell)) {
+            cells.add(cell);
+        }
+    }
+
+    /**
+     * @return The names of the failed or unfinished matrix executions, in the order they were recorded.
+     */
+    public synchronized List<String> getCells() {
+        return new ArrayList<String>(cells);
+    }
+
+    public String getTravisYml() {
+        return travisYml;
+    }
+
+    public Run<?,?> getRun() {
+        return run;
+    }
+
+    /**
+     * Schedules a new build of the job running only the failed matrix executions, with the same parameters as this one.
+     *
+     * @return The new build's future, or null if it couldn't be scheduled.
+     */
+    public QueueTaskFuture<?> scheduleRerun() {
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new CauseAction(new Cause.UserIdCause(), new TravisRerunCause(run, getCells(), travisYml)));
+        ParametersAction parameters = run.getAction(ParametersAction.class);
+        if (parameters != null) {
+            actions.add(parameters);
+        }
+        return ParameterizedJobMixIn.scheduleBuild2(run.getParent(), 0, actions.toArray(new Action[actions.size()]));
+    }
+
+    @RequirePOST
+    public HttpResponse doRerun() {
+        run.getParent().checkPermission(Item.BUILD);
+        if (scheduleRerun() == null) {
+            return HttpResponses.error(500, "Could not schedule a rerun of " + run.getFullDisplayName());
+        }
+        return HttpResponses.redirectViaContextPath(run.getParent().getUrl());
+    }
+
+    @Override
+    public void onAttached(Run<?,?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?,?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        // Only offer a rerun once the build is done, and to those who could start one anyway.
+        if (run == null || run.isBuilding() || !run.getParent().hasPermission(Item.BUILD)) {
+            return null;
+        }
+        return "redo.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Rerun Failed Travis Cells";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "travisRerun";
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.model.Cause;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cause of a build started from a {@link TravisRerunAction}, restricting it to the matrix executions which failed in
+ * the original build, and carrying the ".travis.yml" contents that build ran.
+ */
+public class TravisRerunCause extends Cause {
+    private final String upstreamJob;
+    private final int upstreamBuild;
+    private final List<String> cells;
+    private final String travisYml;
+
+    TravisRerunCause(Run<?,?> upstream, List<String> cells, String travisYml) {
+        this.upstreamJob = upstream.getParent().getFullName();
+        this.upstreamBuild = upstream.getNumber();
+        this.cells = new ArrayList<String>(cells);
+        this.travisYml = travisYml;
+    }
+
+    /**
+     * @return The full name of the job the failed build belongs to.
+     */
+    public String getUpstreamJob() {
+        return upstreamJob;
+    }
+
+    /**
+     * @return The number of the failed build.
+     */
+    public int getUpstreamBuild() {
+        return upstreamBuild;
+    }
+
+    /**
+     * @return The names of the matrix executions to run.
+     */
+    public List<String> getCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
+    /**
+     * @return The String contents of the ".travis.yml" file the failed build ran.
+     */
+    public String getTravisYml() {
+        return travisYml;
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Rerun of the failed Travis matrix executions " + cells + " from build #" + upstreamBuild;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import antlr.ANTLRException;
+import com.google.inject.Inject;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.EnvironmentSpecific;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.NodeSpecific;
+import hudson.tools.InstallSourceProperty;
+import hudson.tools.ToolDescriptor;
+import hudson.tools.ToolInstallation;
+import hudson.tools.ToolLocationNodeProperty;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides the language runtimes, such as "jdk=openjdk8", of an env matrix execution through Jenkins tool
+ * installations. Used by the runner in two ways:
+ * <ul>
+ *     <li>"route", outside a node: returns a label expression narrowing the given label down to the nodes which
+ *     already have all the runtimes installed and have a free executor, so they aren't downloaded again. If none of
+ *     them are free, the label is returned as is, so the execution isn't held up waiting for them and installs the
+ *     runtimes wherever it gets to run instead.</li>
+ *     <li>"install", inside a node: installs the runtimes on the node if needed - tool installers keep them under the
+ *     node's "tools" directory, so this only happens once per node - and returns the environment to use them with,
+ *     e.g. "JAVA_HOME=..." and "PATH+JDK=...".</li>
+ * </ul>
+ *
+ * A runtime is looked up as a tool installation of any type named "axis-version", e.g. "python-3.5", or for "jdk",
+ * also as a JDK named just the version. Runtimes with no matching tool installation are left to the agent.
+ *
+ * Whether a node has a runtime is remembered for {@link #PROBE_CACHE_MILLIS}, so routing doesn't check every node's
+ * filesystem again for every matrix execution of every build.
+ */
+public class TravisRuntimeStep extends AbstractStepImpl {
+    /**
+     * How long to trust whether a node has a runtime before checking its filesystem again - 10 minutes by default.
+     */
+    static final long PROBE_CACHE_MILLIS = Long.getLong(TravisRuntimeStep.class.getName() + ".probeCacheMillis",
+            TimeUnit.MINUTES.toMillis(10));
+
+    private static final Map<String,Probe> PROBES = new ConcurrentHashMap<String,Probe>();
+
+    private final String action;
+    private final List<String> runtimes;
+    private final String label;
+
+    /**
+     * @param action Either "route" or "install".
+     * @param runtimes The runtimes, as "axis=version" strings.
+     * @param label For "route", the label expression to narrow down, if any.
+     */
+    @DataBoundConstructor
+    public TravisRuntimeStep(String action, List<String> runtimes, String label) {
+        if (!"route".equals(action) && !"install".equals(action)) {
+            throw new IllegalArgumentException("action must be either 'route' or 'install', not " + action);
+        }
+        this.action = action;
+        this.runtimes = runtimes != null ? new ArrayList<String>(runtimes) : new ArrayList<String>();
+        this.label = Util.fixEmptyAndTrim(label);
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public List<String> getRuntimes() {
+        return runtimes;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @param runtime An "axis=version" string.
+     * @return The tool installation for the runtime, or null if there isn't one.
+     */
+    static ToolInstallation find(String runtime) {
+        String[] parts = runtime.split("=", 2);
+        String name = parts[0] + "-" + parts[1];
+        for (ToolDescriptor<?> descriptor : ToolInstallation.all()) {
+            for (ToolInstallation installation : descriptor.getInstallations()) {
+                if (name.equals(installation.getName())) {
+                    return installation;
+                }
+            }
+        }
+        if (parts[0].equals("jdk")) {
+            return Jenkins.getInstance().getJDK(parts[1]);
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a tool installation is already present on a node, without installing it.
+     *
+     * @param installation The tool installation.
+     * @param node The node.
+     * @return true if the installation's home directory exists on the node.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static boolean isInstalled(ToolInstallation installation, Node node) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            return false;
+        }
+        String home = null;
+        ToolLocationNodeProperty locations = node.getNodeProperties().get(ToolLocationNodeProperty.class);
+        if (locations != null) {
+            home = locations.getHome(installation);
+        }
+        if (home == null && installation.getProperties().get(InstallSourceProperty.class) != null) {
+            // Where tool installers put things - see ToolInstaller.preferredLocation.
+            home = Util.fixEmptyAndTrim(installation.getHome());
+            if (home == null) {
+                home = "tools/" + sanitize(installation.getDescriptor().getId()) + "/" + sanitize(installation.getName());
+            } else {
+                home = "tools/" + home;
+            }
+            FilePath installed = root.child(home);
+            return installed.exists() && !installed.list().isEmpty();
+        }
+        if (home == null) {
+            home = Util.fixEmptyAndTrim(installation.getHome());
+        }
+        FilePath installed = home != null ? node.createPath(home) : null;
+        return installed != null && installed.exists();
+    }
+
+    /**
+     * As {@link #isInstalled}, but using the last answer for the node and installation if it's recent enough.
+     */
+    static boolean isInstalledCached(ToolInstallation installation, Node node) throws IOException, InterruptedException {
+        String key = probeKey(installation, node);
+        long now = System.currentTimeMillis();
+        Probe probe = PROBES.get(key);
+        if (probe != null && now - probe.checked < PROBE_CACHE_MILLIS) {
+            return probe.installed;
+        }
+        boolean installed = isInstalled(installation, node);
+        PROBES.put(key, new Probe(installed, now));
+        return installed;
+    }
+
+    private static String probeKey(ToolInstallation installation, Node node) {
+        return node.getNodeName() + "\n" + installation.getDescriptor().getId() + "\n" + installation.getName();
+    }
+
+    private static String sanitize(String s) {
+        return s.replaceAll("[^A-Za-z0-9_.-]+", "_");
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisRuntimes";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Route to or install Travis language runtimes";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousNonBlockingStepExecution<Object> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisRuntimeStep step;
+        @StepContextParameter private transient TaskListener listener;
+
+        @Override
+        protected Object run() throws Exception {
+            if ("route".equals(step.getAction())) {
+                return route();
+            } else {
+                return install();
+            }
+        }
+
+        private String route() throws IOException, InterruptedException {
+            Label label = null;
+            if (step.getLabel() != null) {
+                try {
+                    label = Label.parseExpression(step.getLabel());
+                } catch (ANTLRException e) {
+                    // Leave it to the node step to complain about.
+                    return step.getLabel();
+                }
+            }
+
+            List<ToolInstallation> installations = new ArrayList<ToolInstallation>();
+            for (String runtime : step.getRuntimes()) {
+                ToolInstallation installation = find(runtime);
+                if (installation != null) {
+                    installations.add(installation);
+                }
+            }
+            if (installations.isEmpty()) {
+                return step.getLabel();
+            }
+
+            Jenkins jenkins = Jenkins.getInstance();
+            List<Node> nodes = new ArrayList<Node>();
+            nodes.add(jenkins);
+            nodes.addAll(jenkins.getNodes());
+
+            int candidates = 0;
+            int installed = 0;
+            List<String> idleWithRuntimes = new ArrayList<String>();
+            for (Node node : nodes) {
+                Computer computer = node.toComputer();
+                if (node.getNumExecutors() == 0 || computer == null || computer.isOffline()
+                        || (label != null && !label.contains(node))) {
+                    continue;
+                }
+                candidates++;
+                boolean hasAll = true;
+                for (ToolInstallation installation : installations) {
+                    if (!isInstalledCached(installation, node)) {
+                        hasAll = false;
+                        break;
+                    }
+                }
+                if (hasAll) {
+                    installed++;
+                    if (computer.countIdle() > 0) {
+                        idleWithRuntimes.add(node.getSelfLabel().getExpression());
+                    }
+                }
+            }
+
+            // No point narrowing it down if all of the nodes have the runtimes, and if none of the ones that do are free
+            // it's quicker to install them somewhere else than to wait.
+            if (idleWithRuntimes.isEmpty() || installed == candidates) {
+                return step.getLabel();
+            }
+            StringBuilder routed = new StringBuilder();
+            if (step.getLabel() != null) {
+                routed.append('(').append(step.getLabel()).append(") && ");
+            }
+            routed.append('(');
+            for (int i = 0; i < idleWithRuntimes.size(); i++) {
+                routed.append(i > 0 ? " || " : "").append(idleWithRuntimes.get(i));
+            }
+            routed.append(')');
+            listener.getLogger().println("Running on " + routed + ", which already have " + step.getRuntimes()
+                    + " and a free executor");
+            return routed.toString();
+        }
+
+        private List<String> install() throws Exception {
+            Computer computer = getContext().get(Computer.class);
+            Node node = computer != null ? computer.getNode() : null;
+            if (node == null) {
+                throw new IllegalStateException("Language runtimes can only be installed within a node block");
+            }
+            EnvVars env = getContext().get(EnvVars.class);
+
+            List<String> overrides = new ArrayList<String>();
+            for (String runtime : step.getRuntimes()) {
+                ToolInstallation installation = find(runtime);
+                if (installation == null) {
+                    listener.getLogger().println("No tool installation found for " + runtime
+                            + " - using whatever the agent provides");
+                    continue;
+                }
+                // Runs any tool installers, which only download the runtime if the node doesn't have it yet.
+                String probeKey = probeKey(installation, node);
+                if (installation instanceof NodeSpecific) {
+                    installation = (ToolInstallation) ((NodeSpecific<?>) installation).forNode(node, listener);
+                }
+                PROBES.put(probeKey, new Probe(true, System.currentTimeMillis()));
+                if (env != null && installation instanceof EnvironmentSpecific) {
+                    installation = (ToolInstallation) ((EnvironmentSpecific<?>) installation).forEnvironment(env);
+                }
+                listener.getLogger().println("Using " + runtime + " from " + installation.getHome());
+
+                EnvVars toolEnv = new EnvVars();
+                installation.buildEnvVars(toolEnv);
+                if (toolEnv.isEmpty()) {
+                    toolEnv.put("PATH+" + runtime.split("=", 2)[0].toUpperCase(), installation.getHome() + "/bin");
+                }
+                for (Map.Entry<String,String> entry : toolEnv.entrySet()) {
+                    overrides.add(entry.getKey() + "=" + entry.getValue());
+                }
+            }
+            return overrides;
+        }
+    }
+
+    private static final class Probe {
+        private final boolean installed;
+        private final long checked;
+
+        Probe(boolean installed, long checked) {
+            this.installed = installed;
+            this.checked = checked;
+        }
+    }
+}
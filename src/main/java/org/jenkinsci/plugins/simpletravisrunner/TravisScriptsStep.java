@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import com.google.inject.Inject;
+import hudson.Extension;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates the "sh" scripts for a phase's commands with {@link BatchedShellScript}: a single script running all of
+ * them if batched, otherwise one per command. Used by the runner for the "batch" and "logLimit" options, once per
+ * phase.
+ */
+public class TravisScriptsStep extends AbstractStepImpl {
+    private final List<String> commands;
+    private final int timeout;
+    private final boolean batch;
+    private final boolean continueOnFailure;
+    private final int logLimit;
+    private final String logFile;
+
+    /**
+     * @param commands The phase's commands.
+     * @param timeout The timeout in minutes for each command.
+     * @param batch Whether to generate a single script for all the commands.
+     * @param continueOnFailure If batched, whether to run all the commands even if one fails, like Travis's "script".
+     * @param logLimit The number of lines of each command's output to show, or 0 to show it all.
+     * @param logFile The file to save the full output of failed commands to, if limited.
+     */
+    @DataBoundConstructor
+    public TravisScriptsStep(List<String> commands, int timeout, boolean batch, boolean continueOnFailure, int logLimit,
+                             String logFile) {
+        this.commands = commands != null ? new ArrayList<String>(commands) : new ArrayList<String>();
+        this.timeout = timeout;
+        this.batch = batch;
+        this.continueOnFailure = continueOnFailure;
+        this.logLimit = logLimit;
+        this.logFile = logFile;
+    }
+
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public boolean isContinueOnFailure() {
+        return continueOnFailure;
+    }
+
+    public int getLogLimit() {
+        return logLimit;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "simpleTravisScripts";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Generate shell scripts for Travis commands";
+        }
+    }
+
+    public static class Execution extends AbstractSynchronousStepExecution<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true) private transient TravisScriptsStep step;
+
+        @Override
+        protected List<String> run() throws Exception {
+            List<String> scripts = new ArrayList<String>();
+            if (step.isBatch()) {
+                scripts.add(BatchedShellScript.generate(step.getCommands(), step.getTimeout(),
+                        step.isContinueOnFailure(), step.getLogLimit(), step.getLogFile()));
+            } else {
+                for (String command : step.getCommands()) {
+                    scripts.add(BatchedShellScript.generate(Collections.singletonList(command), step.getTimeout(),
+                            false, step.getLogLimit(), step.getLogFile()));
+                }
+            }
+            return scripts;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.model.Api;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Wall-clock timings of a build's Travis executions: the queue wait for each "node", and the time taken by each
+ * matrix execution, phase and command. Shown on the build's "Travis Timings" page, and available from its remote API,
+ * e.g. ".../travisTimings/api/json?depth=1".
+ *
+ * The matrix execution totals are also used to start the longest-running executions first in the next build.
+ */
+@ExportedBean
+public class TravisTimingAction implements RunAction2 {
+    /**
+     * Phase name used for the time spent waiting for a "node".
+     */
+    public static final String QUEUE = "queue";
+
+    /**
+     * Phase name used for the total time of a matrix execution, including its queue wait.
+     */
+    public static final String TOTAL = "total";
+
+    /**
+     * Phase name used to mark a matrix execution skipped because none of the changed paths match its "paths" filter.
+     */
+    public static final String SKIPPED = "skipped";
+
+    /**
+     * Phase name used for a failed attempt at a matrix execution which was then retried.
+     */
+    public static final String RETRY = "retry";
+
+    // Added to from parallel branches while the build may be saved, so XStream mustn't see it change mid-write.
+    private final List<Timing> timings = new CopyOnWriteArrayList<Timing>();
+
+    private transient Run<?,?> run;
+
+    /**
+     * Records a timing against a build, adding the action to it if needed.
+     *
+     * @param run The build.
+     * @param cell The name of the matrix execution, or null if there's no env matrix.
+     * @param phase The Travis phase, or {@link #QUEUE}, {@link #TOTAL}, {@link #SKIPPED} or {@link #RETRY}.
+     * @param command The command within the phase, or null if this is for the whole phase.
+     * @param startMillis When the timed work started, from System.currentTimeMillis().
+     * @param durationMillis How long the timed work took.
+     */
+    static void record(Run<?,?> run, String cell, String phase, String command, long startMillis, long durationMillis) {
+        TravisTimingAction action;
+        synchronized (run) {
+            action = run.getAction(TravisTimingAction.class);
+            if (action == null) {
+                action = new TravisTimingAction();
+                run.addAction(action);
+            }
+        }
+        action.add(new Timing(cell, phase, command, startMillis, durationMillis));
+    }
+
+    /**
+     * Orders matrix executions so that the ones which took longest in the last build that recorded timings start first,
+     * followed by the rest in their original order. Executions without a previous timing are treated as the longest,
+     * since nothing is known about them.
+     *
+     * @param run The current build.
+     * @param cellNames The names of the matrix executions, in their original order.
+     * @return The names, reordered.
+     */
+    static List<String> longestFirst(Run<?,?> run, List<String> cellNames) {
+        final Map<String,Long> previous = new HashMap<String,Long>();
+        for (Run<?,?> build = run.getPreviousCompletedBuild(); build != null;
+             build = build.getPreviousCompletedBuild()) {
+            TravisTimingAction action = build.getAction(TravisTimingAction.class);
+            if (action != null) {
+                for (Timing timing : action.getTimings()) {
+                    if (TOTAL.equals(timing.getPhase()) && timing.getCell() != null) {
+                        previous.put(timing.getCell(), timing.getDurationMillis());
+                    }
+                }
+                break;
+            }
+        }
+
+        List<String> ordered = new ArrayList<String>(cellNames);
+        // Collections.sort is stable, so ties keep their original order.
+        Collections.sort(ordered, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long durationA = previous.containsKey(a) ? previous.get(a) : Long.MAX_VALUE;
+                long durationB = previous.containsKey(b) ? previous.get(b) : Long.MAX_VALUE;
+                return durationA > durationB ? -1 : durationA < durationB ? 1 : 0;
+            }
+        });
+        return ordered;
+    }
+
+    private void add(Timing timing) {
+        timings.add(timing);
+    }
+
+    /**
+     * @return All the timings recorded so far, in the order they finished.
+     */
+    @Exported
+    public List<Timing> getTimings() {
+        return new ArrayList<Timing>(timings);
+    }
+
+    public Run<?,?> getRun() {
+        return run;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Override
+    public void onAttached(Run<?,?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?,?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Travis Timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "travisTimings";
+    }
+
+    /**
+     * A single timing.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Timing {
+        private final String cell;
+        private final String phase;
+        private final String command;
+        private final long startMillis;
+        private final long durationMillis;
+
+        Timing(String cell, String phase, String command, long startMillis, long durationMillis) {
+            this.cell = cell;
+            this.phase = phase;
+            this.command = command;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+        }
+
+        /**
+         * @return The name of the matrix execution, or null if there's no env matrix.
+         */
+        @Exported
+        public String getCell() {
+            return cell;
+        }
+
+        /**
+         * @return The Travis phase, or {@link TravisTimingAction#QUEUE}, {@link TravisTimingAction#TOTAL},
+         *         {@link TravisTimingAction#SKIPPED} or {@link TravisTimingAction#RETRY}.
+         */
+        @Exported
+        public String getPhase() {
+            return phase;
+        }
+
+        /**
+         * @return The command within the phase, or null if this is for the whole phase.
+         */
+        @Exported
+        public String getCommand() {
+            return command;
+        }
+
+        @Exported
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+    }
+}
@@ -23,13 +23,18 @@
  */
 package org.jenkinsci.plugins.simpletravisrunner
 
-import com.cloudbees.groovy.cps.NonCPS
 import org.jenkinsci.plugins.workflow.cps.CpsScript
-import org.yaml.snakeyaml.Yaml
 
 class SimpleTravisRunner implements Serializable {
     private CpsScript script;
 
+    // Timings and failed matrix executions waiting to be recorded, which are recorded in batches by flushRecords() to
+    // save running a step for each. Parallel branches all run on the same CPS thread, so they can safely share these.
+    private List pendingTimings = []
+    private List pendingFailures = []
+    // The ".travis.yml" contents being run, to record failed matrix executions with.
+    private String travisYml
+
     public SimpleTravisRunner(CpsScript script) {
         this.script = script;
     }
@@ -44,42 +49,73 @@ class SimpleTravisRunner implements Serializable {
      * @param timeout Optional timeout, in minutes, for individual steps - defaults to 50 minutes, like travis-ci.org.
      */
     public void call(String path, String labelExpr = null, Integer timeout = 50) {
+        call([path: path, label: labelExpr, timeout: timeout])
+    }
+
+    /**
+     * Load a ".travis.yml" file and execute it as best as we can, with options given as named arguments.
+     * Errors out if run outside a node { } block.
+     *
+     * Supported options:
+     *  - path: The path to the file in question. Required.
+     *  - label: Optional label expression to run parallel "matrix" executions on.
+     *  - timeout: Optional timeout, in minutes, for individual steps - defaults to 50 minutes.
+     *  - lightweight: If true, read the file from the copy checked out on the master when loading the Jenkinsfile,
+     *                 rather than holding an executor and doing a full checkout just to read it.
+     *  - batch: If true, run each phase's commands in a single "sh" step rather than one "sh" step per command.
+     *  - shareSetup: If true, run "before_install" and "install" once rather than in every matrix execution, if they
+     *                don't reference any env matrix variables, and copy the resulting workspace to each execution.
+     *  - maxParallel: If given, run at most this many matrix executions at the same time.
+     *  - failFast: If true, abort all the other matrix executions as soon as one fails.
+     *  - allowFailures: If true, matrix executions listed in "matrix.allow_failures" only mark the build as unstable
+     *                   when they fail, and so never trigger failFast.
+     *  - cache: If false, ignore "cache: directories:" rather than restoring them before "install" and saving them
+     *           after "script". Defaults to true.
+     *  - sequential: If true, run the matrix executions one after another on a single node, each in its own copy of
+     *                the checked out workspace, rather than in parallel on a node each.
+     *  - cleanCells: If true, with sequential, delete each matrix execution's copy of the workspace once it's done.
+     *  - logLimit: If given, show at most this many lines of each command's output in the build log - the first and
+     *              last halves - and save the full output of failed commands to a gzipped log archived per matrix
+     *              execution.
+     *  - retries: If given, run a failed matrix execution again, in the same workspace, up to this many times before
+     *             counting it as failed.
+     *
+     * A build with failed matrix executions gets a "Rerun Failed Travis Cells" action, which starts a new build running
+     * only those executions, with the ".travis.yml" contents the failed build ran.
+     *
+     * @param args A map of the options above.
+     */
+    public void call(Map args) {
+        String path = (String) args.get("path")
+        String labelExpr = (String) args.get("label")
+        boolean lightweight = args.get("lightweight") == true
+        Map config = configFrom(args)
+
         if (script.env.HOME != null) {
             script.error("simpleTravisRunner(travisFile[, label, timeout]) cannot be run within a 'node { ... }' block.")
         } else {
             try {
-                script.node(labelExpr) {
-                    script.checkout script.scm
-                    String travisFile = script.readFile(path)
-
-                    def travisSteps = readAndConvertTravis(travisFile)
-
-                    def envCombos
-
-                    // Let's see what we get from env!
-                    if (travisSteps.containsKey("env")) {
-                        envCombos = generateEnvCombinations(travisSteps.get("env"))
-                    }
-
-                    if (envCombos != null && envCombos.size() > 0) {
-                        def parallelInvocations = [:]
-
-                        for (int i = 0; i < envCombos.size(); i++) {
-                            def thisEnv = envCombos.get(i)
-                            parallelInvocations[thisEnv.toString()] = {
-                                script.node(labelExpr) {
-                                    script.withEnv(thisEnv, executeSteps(travisSteps, true, timeout))
-                                }
-                            }
+                try {
+                    if (lightweight) {
+                        // No executor needed to read the file - we only need one for the actual execution.
+                        String travisFile = (String) script.simpleTravisFile(path: path)
+                        if (travisFile != null) {
+                            runTravisPlan(travisFile, config, true)
+                            return
                         }
-
-                        script.stage "Parallel Travis Execution"
-                        script.parallel parallelInvocations
-
-                    } else {
-                        executeSteps(travisSteps, false, timeout).call()
+                        script.echo("Reading ${path} from a full checkout instead")
                     }
 
+                    long requested = System.currentTimeMillis()
+                    script.node(labelExpr) {
+                        recordTiming(null, "queue", null, requested)
+                        script.checkout script.scm
+                        // A rerun runs the same ".travis.yml" as the build it's rerunning, which simpleTravisPlan
+                        // takes care of.
+                        runTravisPlan(script.readFile(path), config, false)
+                    }
+                } finally {
+                    flushRecords()
                 }
             } catch (IllegalStateException e) {
                 script.error("simpleTravisRunner(travisFile[, label, timeout]) can only be run in a Pipeline script from SCM.")
@@ -88,214 +124,714 @@ class SimpleTravisRunner implements Serializable {
 
     }
 
-    private def executeSteps(travisSteps, boolean inParallel, Integer timeout) {
-        return {
-            // Fail fast on any errors in before_install, install or before_script
-            if (travisSteps.containsKey("before_install")) {
-                if (!inParallel)
-                    script.stage "Travis Before Install"
-                getSteps(travisSteps.get("before_install"), timeout)
+    /**
+     * Load a ".travis.yml" file and return an equivalent Jenkinsfile, which can be committed and run directly instead
+     * of interpreting the ".travis.yml" on every build. Takes the same options as call(Map), except that "maxParallel",
+     * "sequential", "logLimit" and "retries" aren't supported and every phase is batched.
+     *
+     * @param args A map of the options, as for call(Map).
+     * @return The contents of the Jenkinsfile.
+     */
+    public String toPipeline(Map args) {
+        String path = (String) args.get("path")
+        Map config = configFrom(args)
 
+        if (args.get("lightweight") == true) {
+            try {
+                String travisFile = (String) script.simpleTravisFile(path: path)
+                if (travisFile != null) {
+                    return generatePipeline(travisFile, config)
+                }
+                script.echo("Reading ${path} from a full checkout instead")
+            } catch (IllegalStateException e) {
+                script.error("simpleTravisRunner.toPipeline(path: travisFile, lightweight: true) can only be run in a Pipeline script from SCM.")
             }
-            if (travisSteps.containsKey("install")) {
-                if (!inParallel)
-                    script.stage "Travis Install"
-                getSteps(travisSteps.get("install"), timeout)
+        }
 
-            }
-            if (travisSteps.containsKey("before_script")) {
-                if (!inParallel)
-                    script.stage "Travis Before Script"
-                getSteps(travisSteps.get("before_script"), timeout)
-            }
+        String travisFile = null
+        script.node((String) config.get("label")) {
+            script.checkout script.scm
+            travisFile = script.readFile(path)
+        }
+        return generatePipeline(travisFile, config)
+    }
 
-            // Note any failure in the script section but don't fail the build yet.
-            def failedScript = false
-            try {
-                // TODO: Ideally we change this to note failures in script steps but continue through all of them
-                // to completion anyway, as described in https://docs.travis-ci.com/user/customizing-the-build/#Customizing-the-Build-Step,
-                // but I want to think about the implementation more.
-                if (travisSteps.containsKey("script")) {
-                    if (!inParallel)
-                        script.stage "Travis Script"
-                    getSteps(travisSteps.get("script"), timeout)
+    /**
+     * @param travisYml The contents of the ".travis.yml" file.
+     * @param config The normalized options toPipeline(Map) was called with.
+     * @return The contents of the equivalent Jenkinsfile.
+     */
+    private String generatePipeline(String travisYml, Map config) {
+        return (String) script.simpleTravisPipeline(travisYml: travisYml, label: config.get("label"),
+                timeout: config.get("timeout"), shareSetup: config.get("shareSetup"), failFast: config.get("failFast"),
+                allowFailures: config.get("allowFailures"), cache: config.get("cache"))
+    }
+
+    /**
+     * Normalizes the named arguments given to call(Map) or toPipeline(Map) into the options used while running.
+     *
+     * @param args A map of the options.
+     * @return The normalized options.
+     */
+    private Map configFrom(Map args) {
+        return [label: (String) args.get("label"),
+                timeout: args.get("timeout") != null ? (Integer) args.get("timeout") : 50,
+                batch: args.get("batch") == true, shareSetup: args.get("shareSetup") == true,
+                maxParallel: args.get("maxParallel"), failFast: args.get("failFast") == true,
+                allowFailures: args.get("allowFailures") == true, cache: args.get("cache") != false,
+                sequential: args.get("sequential") == true, cleanCells: args.get("cleanCells") == true,
+                logLimit: args.get("logLimit"), retries: args.get("retries") != null ? (Integer) args.get("retries") : 0]
+    }
+
+    /**
+     * Executes a ".travis.yml", either as parallel "matrix" executions if there are any env combinations, or directly
+     * otherwise.
+     *
+     * @param travisFile The contents of the ".travis.yml" file.
+     * @param config The normalized options this was called with.
+     * @param needsNode If true, we're not already in a node block, so non-matrix execution needs its own node and checkout.
+     */
+    private void runTravisPlan(String travisFile, Map config, boolean needsNode) {
+        String labelExpr = (String) config.get("label")
+
+        // Also skips the matrix executions a rerun doesn't run, or whose "paths" filter doesn't match what changed.
+        Map view = (Map) script.simpleTravisPlan(travisYml: travisFile, shareSetup: config.get("shareSetup") == true,
+                longestFirst: config.get("maxParallel") != null)
+        travisYml = (String) view.get("travisYml")
+        Map plan = (Map) view.get("plan")
+
+        // Skip everything if the top-level "paths" filter doesn't match what changed in this build.
+        if (view.get("affected") != true) {
+            script.echo("Skipping - none of the changed paths match the 'paths' filter")
+            script.currentBuild.result = "NOT_BUILT"
+            return
+        }
+
+        List cells = (List) view.get("cells")
+
+        if (view.get("matrix") == true && cells.size() == 0) {
+            script.echo("Skipping - all matrix executions were skipped")
+        } else if (cells.size() > 0 && config.get("sequential") == true) {
+            runCellsSequentially(view, config, needsNode)
+        } else if (cells.size() > 0) {
+            Map cellPlan = plan
+            boolean setupShared = false
+
+            if (((List) view.get("sharedPhases")).size() > 0) {
+                if (needsNode) {
+                    long requested = System.currentTimeMillis()
+                    script.node(labelExpr) {
+                        recordTiming(null, "queue", null, requested)
+                        script.checkout script.scm
+                        runSharedSetup(view, config)
+                    }
+                } else {
+                    runSharedSetup(view, config)
                 }
-            } catch (Exception e) {
-                script.echo("Error on script step: ${e}")
-                failedScript = true
+                cellPlan = (Map) view.get("cellPlan")
+                setupShared = true
             }
 
-            if (!failedScript) {
-                // Skip the deploy-related steps since those rely on Travis internals.
-                def deploySteps = ["before_deploy", "deploy", "after_deploy"]
-                for (int i = 0; i < deploySteps.size(); i++) {
-                    def deployStep = deploySteps.get(i)
-                    if (travisSteps.containsKey(deployStep)) {
-                        script.echo("Not executing '${deployStep}' - Travis-specific")
+            def parallelInvocations = [:]
+            // Matrix executions which, if they fail or don't get to run, should be offered for a rerun.
+            List<String> rerunnable = []
+
+            for (int i = 0; i < cells.size(); i++) {
+                Map cell = (Map) cells.get(i)
+                List<String> thisEnv = (List<String>) cell.get("env")
+                String cellName = (String) cell.get("name")
+                String logFile = (String) cell.get("logFile")
+                List<String> runtimes = (List<String>) cell.get("runtimes")
+                boolean allowedFailure = config.get("allowFailures") == true && cell.get("allowFailure") == true
+                if (!allowedFailure) {
+                    rerunnable.add(cellName)
+                }
+                def runCell = {
+                    long requested = System.currentTimeMillis()
+                    try {
+                        script.node(routeRuntimes(runtimes, labelExpr)) {
+                            recordTiming(cellName, "queue", null, requested)
+                            if (setupShared) {
+                                // The stash leaves out the cache directories, so they come from the cache the shared
+                                // setup saved, rather than each execution's own.
+                                script.unstash "simpleTravisRunner-shared-setup"
+                                cacheDirectories(plan, config, "restore", "shared-setup")
+                            }
+                            withRuntimes(runtimes) {
+                                withRetries(config, cellName) {
+                                    script.withEnv(thisEnv, executeSteps(cellPlan, true, config, cellName, logFile,
+                                            setupShared))
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        // Including aborts, e.g. by failFast, since the execution didn't get to finish.
+                        if (!allowedFailure) {
+                            pendingFailures.add(cellName)
+                        }
+                        throw e
+                    } finally {
+                        recordTiming(cellName, "total", null, requested)
+                        flushRecords()
                     }
                 }
-            }
 
-            // Swallow any errors in after_* - may want to change this, not sure.
-            try {
-                // If the script failed, proceed to after_failure.
-                if (failedScript) {
-                    if (travisSteps.containsKey("after_failure")) {
-                        if (!inParallel)
-                            script.stage "Travis After Failure"
-                        getSteps(travisSteps.get("after_failure"), timeout)
+                if (allowedFailure) {
+                    parallelInvocations[cellName] = {
+                        try {
+                            runCell.call()
+                        } catch (Exception e) {
+                            if (isAbort(e)) {
+                                throw e
+                            }
+                            script.echo("Allowed failure in ${cellName}: ${e}")
+                            script.currentBuild.result = "UNSTABLE"
+                        }
                     }
                 } else {
-                    // Otherwise, check after_success.
-                    if (travisSteps.containsKey("after_success")) {
-                        if (!inParallel)
-                            script.stage "Travis After Success"
-                        getSteps(travisSteps.get("after_success"), timeout)
-                    }
+                    parallelInvocations[cellName] = runCell
                 }
-                if (travisSteps.containsKey("after_script")) {
-                    if (!inParallel)
-                        script.stage "Travis After Script"
-                    getSteps(travisSteps.get("after_script"), timeout)
+            }
+
+            script.stage "Parallel Travis Execution"
+            boolean failFast = config.get("failFast") == true
+            Integer maxParallel = (Integer) config.get("maxParallel")
+            if (maxParallel != null && maxParallel > 0 && maxParallel < parallelInvocations.size()) {
+                runInSlots(parallelInvocations, maxParallel, failFast, rerunnable)
+            } else {
+                if (failFast) {
+                    parallelInvocations["failFast"] = true
                 }
-            } catch (Exception e) {
-                script.echo("Error on after step(s), ignoring: ${e}")
+                script.parallel parallelInvocations
             }
 
-            // If we saw a failure in the script step earlier, error out now.
-            if (failedScript) {
-                script.error("Failing build due to failure of script step.")
+        } else if (needsNode) {
+            long requested = System.currentTimeMillis()
+            script.node(labelExpr) {
+                recordTiming(null, "queue", null, requested)
+                script.checkout script.scm
+                executeSteps(plan, false, config, null, (String) view.get("logFile"), false).call()
             }
+        } else {
+            executeSteps(plan, false, config, null, (String) view.get("logFile"), false).call()
         }
     }
 
     /**
-     * Takes a Travis "step", which could either be a String or an ArrayList of Strings, and returns an array of
-     * Pipeline "sh" steps inside a closure to execute those "steps".
+     * Runs the matrix executions through a fixed number of parallel "slots", each of which takes the next waiting
+     * execution when it finishes its current one. As with a plain "parallel", a failed execution doesn't stop the
+     * others, but fails the build once they've all finished - unless failFast is set, in which case the first failure
+     * aborts all the slots and nothing more is started.
      *
-     * @param travisStep The value for a Travis "step" - could be either a single String or an ArrayList of Strings.
-     * @param timeout Timeout in minutes for execution of this step.
-     * @return A closure containing a possibly-empty array of Pipeline "sh" steps.
+     * @param invocations Map of execution names to the closures running them, with the executions which took longest
+     *                    last time first, so a long one isn't left running on its own at the end.
+     * @param slotCount The number of executions to run at the same time.
+     * @param failFast Whether to abort everything on the first failure.
+     * @param rerunnable The executions to record for a rerun if they never get to start, i.e. not allowed failures.
      */
-    private def getSteps(travisStep, Integer timeout) {
-        def actualSteps = []
-        def stepsList = getYamlStringOrListAsList(travisStep)
-        for (int i = 0; i < stepsList.size(); i++) {
-            def thisStep = stepsList.get(i)
-            actualSteps[i] = script.timeout(time: timeout, unit: 'MINUTES') {
-                script.sh((String) thisStep)
+    private void runInSlots(Map invocations, int slotCount, boolean failFast, List<String> rerunnable) {
+        // Parallel branches all run on the same CPS thread, so they can safely share these.
+        def pending = invocations.keySet().toList()
+        def failed = []
+
+        def slots = [:]
+        for (int i = 0; i < slotCount; i++) {
+            slots["Travis slot ${i + 1}".toString()] = {
+                while (pending.size() > 0) {
+                    String cellName = pending.remove(0)
+                    script.echo("Running ${cellName}")
+                    try {
+                        invocations.get(cellName).call()
+                    } catch (Exception e) {
+                        if (isAbort(e)) {
+                            throw e
+                        }
+                        script.echo("Error in ${cellName}: ${e}")
+                        if (failFast) {
+                            throw e
+                        }
+                        failed.add(cellName)
+                    }
+                }
             }
         }
-        return {
-            actualSteps
+
+        if (failFast) {
+            slots["failFast"] = true
+        }
+        try {
+            script.parallel slots
+        } finally {
+            // Anything still waiting was never started, because of failFast or an abort.
+            for (int i = 0; i < pending.size(); i++) {
+                if (rerunnable.contains(pending.get(i))) {
+                    pendingFailures.add(pending.get(i))
+                }
+            }
+            flushRecords()
+        }
+
+        if (failed.size() > 0) {
+            script.error("Failing build due to failure of ${failed}")
+        }
+    }
+
+    /**
+     * Runs the shared setup phases in the current workspace and stashes the result for the matrix executions to start from.
+     *
+     * @param view The compiled ".travis.yml", as returned by simpleTravisPlan.
+     * @param config The normalized options this was called with.
+     * @param stash Whether to stash the result - not needed if the matrix executions start from copies of this workspace.
+     */
+    private void runSharedSetup(Map view, Map config, boolean stash = true) {
+        Map plan = (Map) view.get("plan")
+        List<String> sharedPhases = (List<String>) view.get("sharedPhases")
+        String logFile = (String) view.get("logFile")
+        cacheDirectories(plan, config, "restore", "shared-setup")
+        withLogFile(config, logFile) {
+            for (int i = 0; i < sharedPhases.size(); i++) {
+                String phase = sharedPhases.get(i)
+                script.stage(phase == "install" ? "Travis Shared Install" : "Travis Shared Before Install")
+                long started = System.currentTimeMillis()
+                try {
+                    getSteps(commandsFor(plan, phase), config, false, null, phase, logFile)
+                } finally {
+                    recordTiming(null, phase, null, started)
+                }
+            }
+        }
+        cacheDirectories(plan, config, "save", "shared-setup")
+        if (stash) {
+            script.stash name: "simpleTravisRunner-shared-setup", includes: "**", excludes: (String) view.get("stashExcludes")
+        }
+    }
+
+    /**
+     * Picks the label to run with language runtimes on, preferring nodes that already have them installed.
+     *
+     * @param runtimes The language runtimes, as "axis=version" strings.
+     * @param labelExpr The label expression given, if any.
+     * @return The label expression to use.
+     */
+    private String routeRuntimes(List<String> runtimes, String labelExpr) {
+        if (runtimes.size() == 0) {
+            return labelExpr
         }
+        return (String) script.simpleTravisRuntimes(action: "route", runtimes: runtimes, label: labelExpr)
     }
 
     /**
-     * Takes a YAML entry that could be either a single String or an ArrayList of Strings. If it's a single String, returns
-     * a new List with that String as the only element. If it's an ArrayList, simply return that list. If the entry is of
-     * any other type, throws an IllegalArgumentException.
+     * Installs the given language runtimes on the current node if needed, and runs the body with them on the path.
      *
-     * @param yamlEntry
-     * @return a list of (hopefully) Strings
-     * @throws IllegalArgumentException
+     * @param runtimes The language runtimes, as "axis=version" strings.
+     * @param body The closure to run.
      */
-    private def getYamlStringOrListAsList(yamlEntry) throws IllegalArgumentException {
-        if (yamlEntry instanceof String) {
-            return [yamlEntry]
-        } else if (yamlEntry instanceof ArrayList) {
-            return yamlEntry
+    private void withRuntimes(List<String> runtimes, Closure body) {
+        if (runtimes.size() == 0) {
+            body.call()
         } else {
-            throw new IllegalArgumentException("Bad format of YAML - found ${yamlEntry.class} when expecting either 'String' or 'ArrayList'")
+            script.withEnv(script.simpleTravisRuntimes(action: "install", runtimes: runtimes), body)
+        }
+    }
+
+    /**
+     * Notes a timing to be recorded by the next flushRecords().
+     *
+     * @param cellName The name of the matrix execution, if any.
+     * @param phase The Travis phase, or one of the phases in TravisTimingAction such as "queue" or "total".
+     * @param command The command within the phase, if any.
+     * @param started When the timed work started - it's taken to end now.
+     */
+    private void recordTiming(String cellName, String phase, String command, long started) {
+        pendingTimings.add([cellName ?: "", phase, command ?: "", started, System.currentTimeMillis()])
+    }
+
+    /**
+     * Records the pending timings and failed matrix executions against the build with the simpleTravisRecord step.
+     */
+    private void flushRecords() {
+        if (pendingTimings.size() > 0 || pendingFailures.size() > 0) {
+            // Swapped out before running the step, which lets other parallel branches run and add to them.
+            List timings = pendingTimings
+            List failures = pendingFailures
+            pendingTimings = []
+            pendingFailures = []
+            script.simpleTravisRecord(timings: timings, failures: failures, travisYml: travisYml)
+        }
+    }
+
+    /**
+     * Whether a failure is an abort of the build, or of this branch by failFast, rather than a failure of the matrix
+     * execution itself. Commands timing out don't count, as {@link #withTimeout} turns them into ordinary failures.
+     *
+     * @param e The failure.
+     * @return true if the failure should be passed on rather than retried or counted as a failed execution.
+     */
+    private boolean isAbort(Exception e) {
+        return e instanceof InterruptedException
+    }
+
+    /**
+     * Runs the body in a "timeout" step, failing if it times out. A timeout interrupts the body just as an abort does,
+     * so it's told apart by whether the time was up - hung commands are as much a failure, and as likely to be a
+     * flake, as failed ones, so shouldn't be passed on as an abort.
+     *
+     * @param minutes The timeout in minutes.
+     * @param description What's being run, for the failure message.
+     * @param body The closure to run.
+     * @return The result of the body.
+     */
+    private def withTimeout(int minutes, String description, Closure body) {
+        long deadline = System.currentTimeMillis() + minutes * 60000L
+        try {
+            return script.timeout(time: minutes, unit: 'MINUTES', body)
+        } catch (InterruptedException e) {
+            if (System.currentTimeMillis() < deadline) {
+                throw e
+            }
+            script.error("Timed out after ${minutes} minutes: ${description}")
+        }
+    }
+
+    /**
+     * Runs the body, running it again if it fails or times out, up to the number of times given by the "retries"
+     * option. The failed attempts are recorded as {@link TravisTimingAction#RETRY} timings, so flaky matrix executions
+     * show up.
+     *
+     * @param config The normalized options this was called with.
+     * @param cellName The name of the matrix execution.
+     * @param body The closure to run.
+     */
+    private void withRetries(Map config, String cellName, Closure body) {
+        int retries = (Integer) config.get("retries")
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            long started = System.currentTimeMillis()
+            try {
+                body.call()
+                return
+            } catch (Exception e) {
+                if (isAbort(e) || attempt == retries) {
+                    throw e
+                }
+                recordTiming(cellName, "retry", null, started)
+                script.echo("Error in ${cellName}, retrying (${attempt + 1} of ${retries}): ${e}")
+            }
         }
     }
 
     /**
-     * Takes the value of the 'env' key in the Travis YAML and returns a map with the environment keys as the key and a
-     * list of specified values for the environment key as the value.
+     * Runs the matrix executions one after another on a single node, each in its own copy of the checked out
+     * workspace, rather than allocating a node and workspace for each. As with parallel execution, a failed execution
+     * doesn't stop the others, but fails the build once they've all finished - unless failFast is set.
      *
-     * @param travisEnv
-     * @return a map of environment keys to lists of values for the key
+     * @param view The compiled ".travis.yml", as returned by simpleTravisPlan, with the matrix executions to run.
+     * @param config The normalized options this was called with.
+     * @param needsNode If true, we're not already in a node block, so we need our own node and checkout.
      */
-    private def generateEnvAxes(travisEnv) {
-        def rawEnvEntries = getYamlStringOrListAsList(travisEnv)
+    private void runCellsSequentially(Map view, Map config, boolean needsNode) {
+        if (needsNode) {
+            long requested = System.currentTimeMillis()
+            script.node(routeRuntimes((List<String>) view.get("runtimes"), (String) config.get("label"))) {
+                recordTiming(null, "queue", null, requested)
+                script.checkout script.scm
+                runCellsSequentially(view, config, false)
+            }
+            return
+        }
 
-        def envEntries = [:]
+        List cells = (List) view.get("cells")
+        Map cellPlan = (Map) view.get("plan")
+        boolean setupShared = false
+        if (((List) view.get("sharedPhases")).size() > 0) {
+            // Every copy is taken from this workspace, cache directories and all, so there's no need to stash.
+            runSharedSetup(view, config, false)
+            cellPlan = (Map) view.get("cellPlan")
+            setupShared = true
+        }
 
-        for (def entryString in rawEnvEntries.toSet()) {
-            if (entryString instanceof String) {
+        // Copies go next to the workspace rather than in it, so each copy doesn't include the earlier ones.
+        String copiesDir = script.pwd() + "@travis"
+        def failed = []
 
-                def cleanedString = stripLeadingTrailingQuotes(entryString)
-                def stringParts = cleanedString.split("=")
+        for (int i = 0; i < cells.size(); i++) {
+            Map cell = (Map) cells.get(i)
+            String cellName = (String) cell.get("name")
+            String copy = "${copiesDir}/${i + 1}"
 
-                if (stringParts != null && stringParts.size() == 2) {
-                    if (!(envEntries.containsKey(stringParts[0]))) {
-                        envEntries[stringParts[0]] = []
+            script.stage "Travis ${cellName}"
+            long started = System.currentTimeMillis()
+            try {
+                // Each attempt starts from a fresh copy.
+                withRetries(config, cellName) {
+                    // Passed in the environment so the path needs no quoting. The copy leaves out the Git metadata,
+                    // which is the bulk of most checkouts and isn't needed to build, and the earlier full logs.
+                    script.withEnv(["TRAVIS_CELL_COPY=${copy}"]) {
+                        script.sh('rm -rf "$TRAVIS_CELL_COPY" && mkdir -p "$TRAVIS_CELL_COPY" && ' +
+                                'tar -cf - --exclude=./.git --exclude=./.travis-logs . | (cd "$TRAVIS_CELL_COPY" && tar -xf -)')
+                    }
+                    script.dir(copy) {
+                        withRuntimes((List<String>) cell.get("runtimes")) {
+                            script.withEnv((List<String>) cell.get("env"),
+                                    executeSteps(cellPlan, true, config, cellName, (String) cell.get("logFile"),
+                                            setupShared))
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                boolean allowedFailure = config.get("allowFailures") == true && cell.get("allowFailure") == true
+                if (isAbort(e) || (!allowedFailure && config.get("failFast") == true)) {
+                    // This execution and the ones after it won't get to run to completion.
+                    if (!isAbort(e)) {
+                        script.echo("Error in ${cellName}: ${e}")
+                    }
+                    for (int j = i; j < cells.size(); j++) {
+                        Map remaining = (Map) cells.get(j)
+                        if (!(config.get("allowFailures") == true && remaining.get("allowFailure") == true)) {
+                            pendingFailures.add(remaining.get("name"))
+                        }
+                    }
+                    throw e
+                }
+                if (allowedFailure) {
+                    script.echo("Allowed failure in ${cellName}: ${e}")
+                    script.currentBuild.result = "UNSTABLE"
+                } else {
+                    pendingFailures.add(cellName)
+                    script.echo("Error in ${cellName}: ${e}")
+                    failed.add(cellName)
+                }
+            } finally {
+                recordTiming(cellName, "total", null, started)
+                flushRecords()
+                if (config.get("cleanCells") == true) {
+                    script.dir(copy) {
+                        script.deleteDir()
                     }
-                    envEntries[stringParts[0]].add(stringParts[1])
                 }
             }
         }
 
-        return envEntries
+        if (failed.size() > 0) {
+            script.error("Failing build due to failure of ${failed}")
+        }
     }
 
+    /**
+     * Restores or saves the plan's "cache: directories:", if it has any and caching hasn't been turned off. The cache
+     * is kept per job, branch and matrix execution.
+     *
+     * @param plan The phases, deploy steps and cache directories to run, from simpleTravisPlan.
+     * @param config The normalized options this was called with.
+     * @param action Either "restore" or "save".
+     * @param cellName The name of the matrix execution, if any.
+     */
+    private void cacheDirectories(Map plan, Map config, String action, String cellName) {
+        List<String> directories = (List<String>) plan.get("cacheDirectories")
+        if (config.get("cache") == true && directories.size() > 0) {
+            String branch = script.env.BRANCH_NAME ?: "default"
+            script.simpleTravisCache(action: action, key: "${branch}\n${cellName ?: ''}".toString(), directories: directories)
+        }
+    }
 
-    private def generateEnvCombinations(travisEnv) {
-        Map<String,List<Object>> axes = generateEnvAxes(travisEnv)
+    private def executeSteps(Map plan, boolean inParallel, Map config, String cellName, String logFile,
+                             boolean fromSharedSetup) {
+        return {
+            withLogFile(config, logFile) {
+                runPhases(plan, inParallel, config, cellName, logFile, fromSharedSetup)
+            }
+        }
+    }
 
-        List<List<Object>> valueCombos = axes.values().toList().combinations()
+    /**
+     * Runs the body and, with the "logLimit" option, archives the log file the full output of its failed commands was
+     * saved to.
+     *
+     * @param config The normalized options this was called with.
+     * @param logFile The log file, from simpleTravisPlan.
+     * @param body The closure to run.
+     */
+    private void withLogFile(Map config, String logFile, Closure body) {
+        if (config.get("logLimit") == null) {
+            body.call()
+            return
+        }
 
-        def keyList = axes.keySet().toList()
+        // Don't append to, or archive, the full log left behind by an earlier build in this workspace. Only this log
+        // is removed, as the shared setup's may be in the same workspace, and the log file names need no quoting.
+        script.sh "rm -f ${logFile}"
+        try {
+            body.call()
+        } finally {
+            // Even if a setup phase failed, or a command hung, as that's when the full output is wanted most.
+            script.step([$class: 'ArtifactArchiver', artifacts: logFile, allowEmptyArchive: true])
+        }
+    }
 
-        def combos = []
+    /**
+     * Runs all the phases of the plan in the current workspace, failing if any of the setup phases or the script fail.
+     *
+     * @param plan The phases, deploy steps and cache directories to run, from simpleTravisPlan.
+     * @param inParallel Whether we're in a parallel matrix execution, where stages can't be used.
+     * @param config The normalized options this was called with.
+     * @param cellName The name of the matrix execution, if any.
+     * @param logFile The file to save the full output of failed commands to, with the "logLimit" option.
+     * @param fromSharedSetup Whether the workspace came from the shared setup, which has already restored and saved
+     *                        the cache directories, so this execution doesn't have a cache of its own.
+     */
+    private void runPhases(Map plan, boolean inParallel, Map config, String cellName, String logFile,
+                           boolean fromSharedSetup) {
+        if (!fromSharedSetup) {
+            cacheDirectories(plan, config, "restore", cellName)
+        }
+
+        // Fail fast on any errors in before_install, install or before_script
+        runPhase(plan, "before_install", "Travis Before Install", inParallel, config, cellName, logFile)
+        runPhase(plan, "install", "Travis Install", inParallel, config, cellName, logFile)
+        runPhase(plan, "before_script", "Travis Before Script", inParallel, config, cellName, logFile)
+
+        // Note any failure in the script section but don't fail the build yet.
+        def failedScript = false
+        try {
+            // TODO: Ideally we change this to note failures in script steps but continue through all of them
+            // to completion anyway, as described in https://docs.travis-ci.com/user/customizing-the-build/#Customizing-the-Build-Step,
+            // but I want to think about the implementation more. Batched execution already does this.
+            runPhase(plan, "script", "Travis Script", inParallel, config, cellName, logFile, true)
+        } catch (Exception e) {
+            // An abort has to stop everything, rather than being retried or counted as a failed execution.
+            if (isAbort(e)) {
+                throw e
+            }
+            script.echo("Error on script step: ${e}")
+            failedScript = true
+        }
 
-        for (int i = 0; i < valueCombos.size(); i++) {
-            List thisCombo = valueCombos.get(i)
-            def thisEnv = []
+        if (!fromSharedSetup) {
+            cacheDirectories(plan, config, "save", cellName)
+        }
 
-            for (int j = 0; j < thisCombo.size(); j++) {
-                def thisVal = thisCombo.get(j)
-                def thisKey = keyList.get(j)
-                thisEnv.add(thisKey + "=" + thisVal)
+        if (!failedScript) {
+            // Skip the deploy-related steps since those rely on Travis internals.
+            List<String> deploySteps = (List<String>) plan.get("deploySteps")
+            for (int i = 0; i < deploySteps.size(); i++) {
+                script.echo("Not executing '${deploySteps.get(i)}' - Travis-specific")
             }
+        }
 
-            combos.add(thisEnv)
+        // Swallow any errors in after_* - may want to change this, not sure.
+        try {
+            // If the script failed, proceed to after_failure.
+            if (failedScript) {
+                runPhase(plan, "after_failure", "Travis After Failure", inParallel, config, cellName, logFile)
+            } else {
+                // Otherwise, check after_success.
+                runPhase(plan, "after_success", "Travis After Success", inParallel, config, cellName, logFile)
+            }
+            runPhase(plan, "after_script", "Travis After Script", inParallel, config, cellName, logFile)
+        } catch (Exception e) {
+            if (isAbort(e)) {
+                throw e
+            }
+            script.echo("Error on after step(s), ignoring: ${e}")
         }
 
-        return combos
+        // If we saw a failure in the script step earlier, error out now.
+        if (failedScript) {
+            script.error("Failing build due to failure of script step.")
+        }
     }
 
     /**
-     * Takes a string, and if it both begins and ends with double quotes or single quotes, returns it with those quotes removed.
-     * Otherwise, returns the original string.
+     * Runs a single phase of the plan, if it's there, and records how long it took.
      *
-     * @param inputString
-     * @return either inputString with leading/trailing quotes removed or the original inputString.
+     * @param plan The phases, deploy steps and cache directories to run, from simpleTravisPlan.
+     * @param phase The name of the phase, e.g. "install".
+     * @param stageName The stage to enter before running the phase, if not in parallel.
+     * @param inParallel Whether we're in a parallel matrix execution, where stages can't be used.
+     * @param config The normalized options this was called with.
+     * @param cellName The name of the matrix execution, if any.
+     * @param logFile The file to save the full output of failed commands to, with the "logLimit" option.
+     * @param continueOnFailure If batched, whether to run all the commands even if one fails, like Travis's "script".
      */
-    private def stripLeadingTrailingQuotes(String inputString) {
-        if ((inputString.startsWith('"') && inputString.endsWith('"')) || (inputString.startsWith("'") && inputString.endsWith("'"))) {
-            return inputString.substring(1, inputString.length() - 1)
-        } else {
-            return inputString
+    private void runPhase(Map plan, String phase, String stageName, boolean inParallel, Map config,
+                          String cellName, String logFile, boolean continueOnFailure = false) {
+        List<String> commands = commandsFor(plan, phase)
+        if (commands != null) {
+            if (!inParallel)
+                script.stage stageName
+            long started = System.currentTimeMillis()
+            try {
+                getSteps(commands, config, continueOnFailure, cellName, phase, logFile)
+            } finally {
+                recordTiming(cellName, phase, null, started)
+            }
         }
     }
 
     /**
-     * Given a ".travis.yml" formatted String (already read from a file), parses that as YAML and returns a nested Map
-     * of the contents.
-     *
-     * NOTE - this is annotated with "@NonCPS" because the Yaml class isn't serializable.
+     * @param plan The phases, deploy steps and cache directories to run, from simpleTravisPlan.
+     * @param phase The name of the phase, e.g. "install".
+     * @return The commands for the phase, or null if the plan doesn't have it.
+     */
+    private List<String> commandsFor(Map plan, String phase) {
+        return (List<String>) ((Map) plan.get("phases")).get(phase)
+    }
+
+    /**
+     * Takes the commands for a Travis "step" and returns an array of Pipeline "sh" steps inside a closure to execute
+     * those "steps". If the "batch" option is set, all the commands are instead run in a single "sh" step. If the
+     * "logLimit" option is set, each command's output is capped, with the full output of failed commands saved to the
+     * matrix execution's log file.
      *
-     * @param travisYml The String contents of a ".travis.yml" file.
-     * @return A Map with the top-level entries in the YAML as keys and their contents as Objects.
+     * @param stepsList The commands for a Travis "step", from the plan.
+     * @param config The normalized options, including the timeout in minutes for execution of this step.
+     * @param continueOnFailure If batched, whether to run all the commands even if one fails, like Travis's "script".
+     * @param cellName The name of the matrix execution, if any, to record command timings against.
+     * @param phase The name of the phase, to record command timings against. Command timings aren't recorded if null,
+     *              or if batched.
+     * @param logFile The file to save the full output of failed commands to, with the "logLimit" option.
+     * @return A closure containing a possibly-empty array of Pipeline "sh" steps.
      */
-    @NonCPS
-    private Map<String,Object> readAndConvertTravis(String travisYml) {
-        Yaml yaml = new Yaml()
+    private def getSteps(List<String> stepsList, Map config, boolean continueOnFailure, String cellName, String phase,
+                         String logFile) {
+        Integer timeout = (Integer) config.get("timeout")
+        int logLimit = config.get("logLimit") != null ? (Integer) config.get("logLimit") : 0
+        boolean batch = config.get("batch") == true
+
+        // The scripts wrapping the commands, if they need any wrapping: one for all of them if batched, otherwise one each.
+        List<String> scripts = null
+        if ((batch || logLimit > 0) && stepsList.size() > 0) {
+            scripts = (List<String>) script.simpleTravisScripts(commands: stepsList, timeout: timeout, batch: batch,
+                    continueOnFailure: continueOnFailure, logLimit: logLimit, logFile: logFile)
+        }
 
-        Map<String, Object> travisYaml = (Map<String, Object>) yaml.load(travisYml)
+        if (batch && stepsList.size() > 0) {
+            // Each command has its own timeout inside the script - this is just an overall backstop.
+            String batchedScript = scripts.get(0)
+            def batchedStep = withTimeout(timeout * stepsList.size(), "${stepsList.size()} commands".toString()) {
+                script.sh(batchedScript)
+            }
+            return {
+                [batchedStep]
+            }
+        }
 
-        return travisYaml
+        def actualSteps = []
+        for (int i = 0; i < stepsList.size(); i++) {
+            def thisStep = stepsList.get(i)
+            String thisScript = scripts != null ? scripts.get(i) : (String) thisStep
+            long started = System.currentTimeMillis()
+            try {
+                actualSteps[i] = withTimeout(timeout, (String) thisStep) {
+                    script.sh(thisScript)
+                }
+            } finally {
+                if (phase != null) {
+                    recordTiming(cellName, phase, (String) thisStep, started)
+                }
+            }
+        }
+        return {
+            actualSteps
+        }
     }
 }
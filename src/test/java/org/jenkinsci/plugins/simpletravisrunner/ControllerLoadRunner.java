@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.model.queue.QueueTaskFuture;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.scm.GitSampleRepoRule;
+import org.jenkinsci.plugins.workflow.steps.scm.GitStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+/**
+ * Load test measuring the controller's overhead when running many matrix builds at once: N jobs, each with a large env
+ * matrix of trivial "sh" commands, are started together. Not picked up by a normal test run - use
+ * "mvn -P loadtest test", optionally with the system properties below.
+ *
+ * Reports the controller's CPU time per build, the checkpoint (program.dat) bytes written and the time to completion.
+ * Since the commands themselves run as separate processes, the Jenkins JVM's CPU time is almost all Pipeline overhead.
+ * Checkpoint bytes are sampled by watching each build's program.dat, so very quick successive writes may be missed.
+ *
+ * <ul>
+ *     <li>loadtest.jobs - the number of concurrent jobs, default 10.</li>
+ *     <li>loadtest.cells - the number of matrix executions in each job, default 20.</li>
+ *     <li>loadtest.commands - the number of "script" commands in each matrix execution, default 5.</li>
+ *     <li>loadtest.executors - the number of executors on the master, default 8.</li>
+ *     <li>loadtest.options - extra named arguments for simpleTravisRunner, such as "batch: true".</li>
+ * </ul>
+ */
+public class ControllerLoadRunner {
+
+    @Rule public RestartableJenkinsRule story = new RestartableJenkinsRule();
+    @Rule public GitSampleRepoRule sampleRepo = new GitSampleRepoRule();
+
+    @Test public void concurrentMatrixBuilds() throws Exception {
+        final int jobs = Integer.getInteger("loadtest.jobs", 10);
+        final int cells = Integer.getInteger("loadtest.cells", 20);
+        final int commands = Integer.getInteger("loadtest.commands", 5);
+        final int executors = Integer.getInteger("loadtest.executors", 8);
+        final String options = System.getProperty("loadtest.options", "");
+
+        StringBuilder travisYml = new StringBuilder("env:\n");
+        for (int i = 0; i < cells; i++) {
+            travisYml.append("  - CELL=").append(i).append('\n');
+        }
+        travisYml.append("script:\n");
+        for (int i = 0; i < commands; i++) {
+            travisYml.append("  - echo \"command ").append(i).append(" of cell $CELL\"\n");
+        }
+
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml", travisYml.toString());
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true"
+                + (options.length() > 0 ? ", " + options : "") + ")");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                story.j.jenkins.setNumExecutors(executors);
+                List<WorkflowJob> projects = new ArrayList<WorkflowJob>();
+                for (int i = 0; i < jobs; i++) {
+                    WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "load" + i);
+                    p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                    projects.add(p);
+                }
+
+                final List<WorkflowRun> builds = new ArrayList<WorkflowRun>();
+                final Map<WorkflowRun,CheckpointCounter> checkpoints = new HashMap<WorkflowRun,CheckpointCounter>();
+                long bytesWrittenBefore = bytesWritten();
+                long cpuBefore = processCpuTime();
+                long started = System.nanoTime();
+
+                List<QueueTaskFuture<WorkflowRun>> futures = new ArrayList<QueueTaskFuture<WorkflowRun>>();
+                for (WorkflowJob p : projects) {
+                    futures.add(p.scheduleBuild2(0));
+                }
+                for (QueueTaskFuture<WorkflowRun> future : futures) {
+                    WorkflowRun b = future.waitForStart();
+                    builds.add(b);
+                    checkpoints.put(b, new CheckpointCounter(new File(b.getRootDir(), "program.dat")));
+                }
+
+                final AtomicBoolean done = new AtomicBoolean();
+                Thread sampler = new Thread("checkpoint sampler") {
+                    @Override public void run() {
+                        while (!done.get()) {
+                            for (CheckpointCounter counter : checkpoints.values()) {
+                                counter.sample();
+                            }
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                };
+                sampler.setDaemon(true);
+                sampler.start();
+
+                long elapsed;
+                long cpu;
+                long bytesWritten;
+                try {
+                    for (WorkflowRun b : builds) {
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b));
+                    }
+                    elapsed = System.nanoTime() - started;
+                    cpu = processCpuTime() - cpuBefore;
+                    bytesWritten = bytesWritten() - bytesWrittenBefore;
+                } finally {
+                    done.set(true);
+                    sampler.join();
+                }
+
+                long checkpointCount = 0;
+                long checkpointBytes = 0;
+                System.out.println("=== Controller load test: " + jobs + " jobs x " + cells + " matrix executions x "
+                        + commands + " commands, " + executors + " executors, options [" + options + "] ===");
+                for (WorkflowRun b : builds) {
+                    CheckpointCounter counter = checkpoints.get(b);
+                    checkpointCount += counter.writes.get();
+                    checkpointBytes += counter.bytes.get();
+                    System.out.println(b.getFullDisplayName() + ": completed in " + b.getDuration() + "ms, "
+                            + counter.writes.get() + " checkpoints, " + counter.bytes.get() + " checkpoint bytes");
+                }
+                System.out.println("Time to completion: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+                if (cpu >= 0) {
+                    System.out.println("Controller CPU time: " + TimeUnit.NANOSECONDS.toMillis(cpu) + "ms total, "
+                            + TimeUnit.NANOSECONDS.toMillis(cpu / jobs) + "ms per build");
+                }
+                System.out.println("Checkpoints: " + checkpointCount + " writes, " + checkpointBytes + " bytes total, "
+                        + checkpointBytes / jobs + " bytes per build");
+                if (bytesWritten >= 0) {
+                    System.out.println("Total bytes written by the controller: " + bytesWritten);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The CPU time used by this JVM, in nanoseconds, or -1 if it isn't available.
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * @return The bytes written by this process, from /proc/self/io, or -1 if that isn't available.
+     */
+    private static long bytesWritten() {
+        try {
+            for (String line : FileUtils.readLines(new File("/proc/self/io"), "UTF-8")) {
+                if (line.startsWith("wchar:")) {
+                    return Long.parseLong(line.substring("wchar:".length()).trim());
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux.
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the writes of a build's program.dat by watching for changes to its size or modification time.
+     */
+    private static final class CheckpointCounter {
+        private final File programDat;
+        private final AtomicLong writes = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private long lastModified;
+        private long lastLength;
+
+        CheckpointCounter(File programDat) {
+            this.programDat = programDat;
+        }
+
+        void sample() {
+            long modified = programDat.lastModified();
+            long length = programDat.length();
+            if (modified != 0 && (modified != lastModified || length != lastLength)) {
+                writes.incrementAndGet();
+                bytes.addAndGet(length);
+            }
+            lastModified = modified;
+            lastLength = length;
+        }
+    }
+}
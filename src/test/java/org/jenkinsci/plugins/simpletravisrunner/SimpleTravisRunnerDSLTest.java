@@ -23,13 +23,20 @@
  */
 package org.jenkinsci.plugins.simpletravisrunner;
 
+import hudson.model.JDK;
 import hudson.model.Result;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.cps.CpsScmFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -41,8 +48,10 @@ import static org.junit.Assert.*;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runners.model.Statement;
 import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.RestartableJenkinsRule;
 
 public class SimpleTravisRunnerDSLTest {
@@ -50,6 +59,7 @@ public class SimpleTravisRunnerDSLTest {
     @ClassRule public static BuildWatcher buildWatcher = new BuildWatcher();
     @Rule public RestartableJenkinsRule story = new RestartableJenkinsRule();
     @Rule public GitSampleRepoRule sampleRepo = new GitSampleRepoRule();
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
 
     @Test public void firstDoNoHarm() {
         story.addStep(new Statement() {
@@ -137,6 +147,19 @@ public class SimpleTravisRunnerDSLTest {
         });
     }
 
+    @Test public void pluginInternalsNotWhitelisted() {
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsFlowDefinition(
+                        "org.jenkinsci.plugins.simpletravisrunner.TravisPlanCache.get('script: [ls]')\n",
+                        true));
+                story.j.assertLogContains("staticMethod org.jenkinsci.plugins.simpletravisrunner.TravisPlanCache get java.lang.String",
+                        story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get()));
+            }
+        });
+    }
+
     @Test public void simpleTravisYml() throws Exception {
         sampleRepo.init();
         sampleRepo.write("somefile", "");
@@ -373,6 +396,865 @@ public class SimpleTravisRunnerDSLTest {
         });
     }
 
+    @Test public void lightweightRead() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("somefile", "");
+        sampleRepo.write(".travis.yml",
+                "script: ls -la");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", "somefile", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                // Otherwise the first build can't know that no other build has checked out over its script checkout.
+                p.setConcurrentBuild(false);
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("somefile",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+                story.j.assertLogContains("Travis Script", b);
+                story.j.assertLogNotContains("from a full checkout instead", b);
+            }
+        });
+    }
+
+    @Test public void lightweightReadRefusesSymlinks() throws Exception {
+        File secret = tmp.newFile("secret");
+        FileUtils.writeStringToFile(secret, "script: echo 'top secret'\n");
+        sampleRepo.init();
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        assertEquals(0, new ProcessBuilder("ln", "-s", secret.getAbsolutePath(), ".travis.yml")
+                .directory(new File(sampleRepo.toString())).start().waitFor());
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                p.setConcurrentBuild(false);
+                WorkflowRun b = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains(".travis.yml is a symbolic link", b);
+                story.j.assertLogNotContains("top secret", b);
+            }
+        });
+    }
+
+    @Test public void lightweightReadAfterConcurrentCheckout() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml", "script: echo 'version one'\n");
+        sampleRepo.write("Jenkinsfile", "semaphore 'wait'; simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                // The first lightweight build has no revision recorded, so can't trust the script checkout.
+                SemaphoreStep.success("wait/1", null);
+                WorkflowRun b0 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("No revision recorded for the Pipeline script checkout", b0);
+                story.j.assertLogContains("version one", b0);
+
+                WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+                SemaphoreStep.waitForStart("wait/2", b1);
+
+                // A second build checks out a newer revision into the shared script checkout.
+                sampleRepo.write(".travis.yml", "script: echo 'version two'\n");
+                sampleRepo.git("commit", "--all", "--message=two");
+                SemaphoreStep.success("wait/3", null);
+                WorkflowRun b2 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("version two", b2);
+                story.j.assertLogNotContains("from a full checkout instead", b2);
+
+                SemaphoreStep.success("wait/2", null);
+                story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b1));
+                story.j.assertLogContains("Pipeline script checkout has moved on to another revision", b1);
+                story.j.assertLogContains("version one", b1);
+                story.j.assertLogNotContains("version two", b1);
+            }
+        });
+    }
+
+    @Test public void lightweightEnvMatrix() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "script: echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("foo is first",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+                story.j.assertLogContains("foo is second", b);
+                story.j.assertLogContains("Parallel Travis Execution", b);
+            }
+        });
+    }
+
+    @Test public void batchedSteps() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write("somefile", "");
+        sampleRepo.write(".travis.yml",
+                "install:\n" +
+                        "  - echo 'in install'\n" +
+                        "  - echo \"it's quoted\"\n" +
+                        "script:\n" +
+                        "  - ls -la\n" +
+                        "  - echo pants\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', batch: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", "somefile", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("somefile",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+                story.j.assertLogContains("in install", b);
+                story.j.assertLogContains("it's quoted", b);
+                story.j.assertLogContains("pants", b);
+                story.j.assertLogContains("Travis Install", b);
+                story.j.assertLogContains("Travis Script", b);
+            }
+        });
+    }
+
+    @Test public void batchedScriptRunsAllCommands() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "script:\n" +
+                        "  - exit 3\n" +
+                        "  - echo 'still ran'\n" +
+                        "after_failure: echo 'in after_failure'\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', batch: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("Command 1 of 2 failed with exit code 3:",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+                story.j.assertLogContains("still ran", b);
+                story.j.assertLogContains("Travis After Failure", b);
+            }
+        });
+    }
+
+    @Test public void batchedFastFailOnEarlyPhases() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "install:\n" +
+                        "  - exit 1\n" +
+                        "  - echo 'should not run'\n" +
+                        "script: echo pants\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', batch: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("Command 1 of 2 failed with exit code 1:",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+                story.j.assertLogNotContains("should not run\n", b);
+                story.j.assertLogNotContains("Travis Script", b);
+            }
+        });
+    }
+
+    @Test public void sharedSetup() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "install: touch installed-marker\n" +
+                        "before_script: echo \"before_script for ${FOO}\"\n" +
+                        "script: test -f installed-marker && echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', shareSetup: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("Travis Shared Install",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+                story.j.assertLogNotContains("Travis Shared Before Install", b);
+                story.j.assertLogContains("before_script for first", b);
+                story.j.assertLogContains("foo is first", b);
+                story.j.assertLogContains("foo is second", b);
+            }
+        });
+    }
+
+    @Test public void sharedSetupCache() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "cache:\n" +
+                        "  directories:\n" +
+                        "    - deps\n" +
+                        "install: mkdir -p deps && touch deps/installed\n" +
+                        "script: test -f deps/installed && echo \"deps for $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', shareSetup: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("deps for first", b);
+                story.j.assertLogContains("deps for second", b);
+                // The cache directories aren't stashed, but restored from what the shared setup saved, and the
+                // executions don't save caches of their own.
+                String log = JenkinsRule.getLog(b);
+                assertEquals(log, log.indexOf("Saved cache for deps"), log.lastIndexOf("Saved cache for deps"));
+                assertTrue(log, log.indexOf("Saved cache for deps") >= 0);
+                assertTrue(log, log.indexOf("Restored cache for deps") >= 0);
+            }
+        });
+    }
+
+    @Test public void sharedSetupSkippedWhenReferencingMatrix() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "install: echo \"install for $FOO\"\n" +
+                        "script: echo pants\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', shareSetup: true, lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("install for first",
+                        story.j.assertBuildStatusSuccess(story.j.waitForCompletion(b)));
+                story.j.assertLogContains("install for second", b);
+                story.j.assertLogNotContains("Travis Shared Install", b);
+            }
+        });
+    }
+
+    @Test public void maxParallel() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "  - FOO=third\n" +
+                        "script: test \"$FOO\" != second && echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', maxParallel: 2)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("Failing build due to failure of [[FOO=second]]",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+                story.j.assertLogContains("[Travis slot 1]", b);
+                story.j.assertLogContains("[Travis slot 2]", b);
+                story.j.assertLogNotContains("[Travis slot 3]", b);
+                story.j.assertLogContains("foo is first", b);
+                story.j.assertLogContains("foo is third", b);
+            }
+        });
+    }
+
+    @Test public void failFast() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=fail\n" +
+                        "  - FOO=slow\n" +
+                        "script: if [ \"$FOO\" = fail ]; then exit 1; fi; sleep 60; echo \"finished $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', failFast: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogNotContains("finished slow",
+                        story.j.assertBuildStatus(Result.FAILURE, story.j.waitForCompletion(b)));
+            }
+        });
+    }
+
+    @Test public void failFastExemptsAllowedFailures() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=fail\n" +
+                        "  - FOO=slow\n" +
+                        "matrix:\n" +
+                        "  allow_failures:\n" +
+                        "    - env: FOO=fail\n" +
+                        "script: if [ \"$FOO\" = fail ]; then exit 1; fi; sleep 5; echo \"finished $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', failFast: true, allowFailures: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.assertLogContains("finished slow",
+                        story.j.assertBuildStatus(Result.UNSTABLE, story.j.waitForCompletion(b)));
+                story.j.assertLogContains("Allowed failure in [FOO=fail]", b);
+            }
+        });
+    }
+
+    @Test public void cacheDirectories() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "cache:\n" +
+                        "  directories:\n" +
+                        "    - cached\n" +
+                        "script: if [ -f cached/marker ]; then echo 'marker restored'; else mkdir -p cached && touch cached/marker; fi\n" +
+                        "after_script: rm -rf cached\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner('.travis.yml')");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b1 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("No cache found for cached", b1);
+                story.j.assertLogContains("Saved cache for cached", b1);
+                story.j.assertLogNotContains("marker restored", b1);
+                WorkflowRun b2 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("Restored cache for cached", b2);
+                story.j.assertLogContains("marker restored", b2);
+            }
+        });
+    }
+
+    @Test public void timings() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "install: echo installing\n" +
+                        "script:\n" +
+                        "  - if [ \"$FOO\" = second ]; then sleep 5; fi\n" +
+                        "  - echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', maxParallel: 1)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                TravisTimingAction action = b.getAction(TravisTimingAction.class);
+                assertNotNull(action);
+                Set<String> recorded = new TreeSet<String>();
+                for (TravisTimingAction.Timing timing : action.getTimings()) {
+                    assertTrue(timing.getDurationMillis() >= 0);
+                    recorded.add(timing.getCell() + ":" + timing.getPhase() + ":" + timing.getCommand());
+                }
+                assertTrue(recorded.toString(), recorded.contains("[FOO=first]:queue:null"));
+                assertTrue(recorded.toString(), recorded.contains("[FOO=second]:total:null"));
+                assertTrue(recorded.toString(), recorded.contains("[FOO=first]:install:null"));
+                assertTrue(recorded.toString(), recorded.contains("[FOO=second]:script:echo \"foo is $FOO\""));
+                story.j.createWebClient().goTo(b.getUrl() + "travisTimings/api/json?depth=1", "application/json");
+                // With no earlier timings, the executions start in their original order...
+                String log = JenkinsRule.getLog(b);
+                assertTrue(log, log.indexOf("Running [FOO=first]") < log.indexOf("Running [FOO=second]"));
+                // ...but the next build starts the one which took longest first.
+                WorkflowRun b2 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                log = JenkinsRule.getLog(b2);
+                assertTrue(log, log.indexOf("Running [FOO=second]") >= 0);
+                assertTrue(log, log.indexOf("Running [FOO=second]") < log.indexOf("Running [FOO=first]"));
+            }
+        });
+    }
+
+    @Test public void toPipeline() throws Exception {
+        sampleRepo.init();
+        final String travisYml = "env:\n" +
+                "  - FOO=first\n" +
+                "  - FOO=second\n" +
+                "install: echo 'installing'\n" +
+                "script:\n" +
+                "  - echo \"foo is $FOO\"\n" +
+                "  - test \"$FOO\" != second\n" +
+                "after_failure: echo \"after failure for $FOO\"\n";
+        sampleRepo.write(".travis.yml", travisYml);
+        sampleRepo.write("Jenkinsfile", "echo simpleTravisRunner.toPipeline(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b1 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("parallel(", b1);
+                story.j.assertLogContains("'[FOO=second]': {", b1);
+                story.j.assertLogNotContains("foo is first", b1);
+
+                String generated = TravisPipelineGenerator.generate(TravisPlanCompiler.compile(travisYml),
+                        Collections.<String,Object>emptyMap());
+                sampleRepo.write("Jenkinsfile", generated);
+                sampleRepo.git("add", "Jenkinsfile");
+                sampleRepo.git("commit", "--message=generated");
+                WorkflowRun b2 = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("foo is first", b2);
+                story.j.assertLogContains("foo is second", b2);
+                story.j.assertLogContains("after failure for second", b2);
+                story.j.assertLogNotContains("after failure for first", b2);
+                story.j.assertLogContains("Failing build due to failure of script step.", b2);
+            }
+        });
+    }
+
+    @Test public void toPipelineMatchesRunner() throws Exception {
+        sampleRepo.init();
+        final String travisYml = "env:\n" +
+                "  - FOO=ok\n" +
+                "  - FOO=hang\n" +
+                "matrix:\n" +
+                "  allow_failures:\n" +
+                "    - env: FOO=hang\n" +
+                "install: if [ \"$FOO\" = hang ]; then sleep 600; fi\n" +
+                "script: echo \"foo is $FOO\"\n";
+        sampleRepo.write(".travis.yml", travisYml);
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', timeout: 1, allowFailures: true, lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                Map<String,Object> config = new HashMap<String,Object>();
+                config.put("timeout", 1);
+                config.put("allowFailures", true);
+                WorkflowJob runner = story.j.jenkins.createProject(WorkflowJob.class, "runner");
+                runner.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowJob generated = story.j.jenkins.createProject(WorkflowJob.class, "generated");
+                generated.setDefinition(new CpsFlowDefinition(
+                        TravisPipelineGenerator.generate(TravisPlanCompiler.compile(travisYml), config), true));
+                story.j.jenkins.setNumExecutors(4);
+
+                // The same .travis.yml should give the same outcome, whether run directly or from the generated script:
+                // the hung command times out, which is an allowed failure rather than an abort of the build.
+                WorkflowRun b1 = runner.scheduleBuild2(0).waitForStart();
+                WorkflowRun b2 = generated.scheduleBuild2(0).waitForStart();
+                for (WorkflowRun b : Arrays.asList(b1, b2)) {
+                    story.j.assertLogContains("foo is ok",
+                            story.j.assertBuildStatus(Result.UNSTABLE, story.j.waitForCompletion(b)));
+                    story.j.assertLogContains("out after 1 minutes", b);
+                    story.j.assertLogContains("Allowed failure in [FOO=hang]", b);
+                    story.j.assertLogNotContains("foo is hang", b);
+                }
+            }
+        });
+    }
+
+    @Test public void pathFilters() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "paths:\n" +
+                        "  - \"**\"\n" +
+                        "  - \"!docs/**\"\n" +
+                        "env:\n" +
+                        "  - MODULE=core\n" +
+                        "  - MODULE=web\n" +
+                        "matrix:\n" +
+                        "  paths:\n" +
+                        "    - env: MODULE=core\n" +
+                        "      paths: core/**\n" +
+                        "    - env: MODULE=web\n" +
+                        "      paths: web/**\n" +
+                        "script: echo \"building $MODULE\" && test ! -f \"$MODULE/broken\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                // No changes recorded for the first build, so nothing is skipped.
+                WorkflowRun b1 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("building core", b1);
+                story.j.assertLogContains("building web", b1);
+
+                sampleRepo.write("web/index.html", "<html/>");
+                sampleRepo.git("add", "web/index.html");
+                sampleRepo.git("commit", "--message=web");
+                WorkflowRun b2 = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("Skipping [MODULE=core]", b2);
+                story.j.assertLogNotContains("building core", b2);
+                story.j.assertLogContains("building web", b2);
+                boolean skipped = false;
+                for (TravisTimingAction.Timing timing : b2.getAction(TravisTimingAction.class).getTimings()) {
+                    skipped |= "[MODULE=core]".equals(timing.getCell()) && TravisTimingAction.SKIPPED.equals(timing.getPhase());
+                }
+                assertTrue(skipped);
+
+                sampleRepo.write("docs/index.md", "docs");
+                sampleRepo.git("add", "docs/index.md");
+                sampleRepo.git("commit", "--message=docs");
+                WorkflowRun b3 = story.j.assertBuildStatus(Result.NOT_BUILT, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("none of the changed paths match the 'paths' filter", b3);
+                story.j.assertLogNotContains("building", b3);
+
+                sampleRepo.write("core/broken", "");
+                sampleRepo.git("add", "core/broken");
+                sampleRepo.git("commit", "--message=break core");
+                WorkflowRun b4 = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("building core", b4);
+
+                // Only docs changed since the last build, but core changed since the last successful one.
+                sampleRepo.write("docs/more.md", "more docs");
+                sampleRepo.git("add", "docs/more.md");
+                sampleRepo.git("commit", "--message=more docs");
+                WorkflowRun b5 = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("building core", b5);
+                story.j.assertLogContains("Skipping [MODULE=web]", b5);
+            }
+        });
+    }
+
+    @Test public void sequential() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "  - FOO=third\n" +
+                        "install: touch installed\n" +
+                        "script:\n" +
+                        "  - test -f .travis.yml -a -f installed -a ! -d .git\n" +
+                        "  - if ls marker-* >/dev/null 2>&1; then echo 'not isolated'; exit 1; fi\n" +
+                        "  - touch \"marker-$FOO\"\n" +
+                        "  - test \"$FOO\" != second && echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', sequential: true, cleanCells: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("Failing build due to failure of [[FOO=second]]", b);
+                story.j.assertLogContains("foo is first", b);
+                story.j.assertLogContains("foo is third", b);
+                story.j.assertLogNotContains("not isolated", b);
+                story.j.assertLogNotContains("[[FOO=first]]", b);
+                File copies = new File(story.j.jenkins.getWorkspaceFor(p).getRemote() + "@travis");
+                assertFalse(new File(copies, "1").exists());
+                assertFalse(new File(copies, "3").exists());
+                assertFalse(new File(story.j.jenkins.getWorkspaceFor(p).getRemote(), "marker-first").exists());
+            }
+        });
+    }
+
+    @Test public void runtimeAxes() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "jdk:\n" +
+                        "  - fake\n" +
+                        "  - missing\n" +
+                        "script: echo \"jdk $TRAVIS_JDK_VERSION at ${JAVA_HOME:-none}\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                File home = tmp.newFolder("fake-jdk");
+                story.j.jenkins.getJDKs().add(new JDK("jdk-fake", home.getAbsolutePath()));
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("jdk fake at " + home.getAbsolutePath(), b);
+                story.j.assertLogContains("No tool installation found for jdk=missing", b);
+                story.j.assertLogContains("jdk missing at", b);
+            }
+        });
+    }
+
+    @Test public void logLimit() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "script:\n" +
+                        "  - for i in $(seq 1 100); do echo \"line $i of $FOO\"; done\n" +
+                        "  - test \"$FOO\" != second\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', logLimit: 10)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("line 1 of first", b);
+                story.j.assertLogContains(" lines omitted ...", b);
+                story.j.assertLogContains("line 100 of first", b);
+                story.j.assertLogNotContains("line 50 of first", b);
+                story.j.assertLogContains("Full output of the failed command saved to .travis-logs/_FOO=second_.log.gz", b);
+                assertFalse(new File(b.getArtifactsDir(), ".travis-logs/_FOO=first_.log.gz").exists());
+                String full = IOUtils.toString(new GZIPInputStream(new FileInputStream(
+                        new File(b.getArtifactsDir(), ".travis-logs/_FOO=second_.log.gz"))));
+                assertTrue(full, full.contains("test second != second"));
+                assertFalse(full, full.contains("line 50 of second"));
+            }
+        });
+    }
+
+    @Test public void logLimitSharedSetup() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "install:\n" +
+                        "  - echo 'installing'\n" +
+                        "  - echo 'install failed' && false\n" +
+                        "script: echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', shareSetup: true, logLimit: 10)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                story.j.assertLogContains("Travis Shared Install", b);
+                story.j.assertLogNotContains("foo is first", b);
+                String full = IOUtils.toString(new GZIPInputStream(new FileInputStream(
+                        new File(b.getArtifactsDir(), ".travis-logs/build.log.gz"))));
+                assertTrue(full, full.contains("install failed"));
+            }
+        });
+    }
+
+    @Test public void retries() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "script:\n" +
+                        "  - if [ \"$FOO\" = second -a ! -f attempted ]; then touch attempted; echo flaked; exit 1; fi\n" +
+                        "  - echo \"foo is $FOO\"\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', retries: 1)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("flaked", b);
+                story.j.assertLogContains("Error in [FOO=second], retrying (1 of 1)", b);
+                story.j.assertLogContains("foo is second", b);
+                assertNull(b.getAction(TravisRerunAction.class));
+                int retried = 0;
+                for (TravisTimingAction.Timing timing : b.getAction(TravisTimingAction.class).getTimings()) {
+                    if (TravisTimingAction.RETRY.equals(timing.getPhase())) {
+                        assertEquals("[FOO=second]", timing.getCell());
+                        retried++;
+                    }
+                }
+                assertEquals(1, retried);
+            }
+        });
+    }
+
+    @Test public void retriesTimeouts() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "install: if [ ! -f attempted ]; then touch attempted; echo hanging; sleep 300; fi\n" +
+                        "script: echo done\n" +
+                        "env:\n" +
+                        "  - FOO=only\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', timeout: 1, retries: 1)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatusSuccess(p.scheduleBuild2(0));
+                story.j.assertLogContains("hanging", b);
+                // Not in "script", whose failures are caught anyway, so this is only retried if seen as a timeout.
+                story.j.assertLogContains("Timed out after 1 minutes", b);
+                story.j.assertLogContains("Error in [FOO=only], retrying (1 of 1)", b);
+                story.j.assertLogContains("done", b);
+            }
+        });
+    }
+
+    @Test public void abortDuringScriptIsNotRetried() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=only\n" +
+                        "script: echo \"running $FOO\"; sleep 300\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', retries: 1)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("running only", b);
+                b.getExecutor().interrupt();
+                story.j.assertBuildStatus(Result.ABORTED, story.j.waitForCompletion(b));
+                story.j.assertLogNotContains("retrying", b);
+                story.j.assertLogNotContains("Error on script step", b);
+            }
+        });
+    }
+
+    @Test public void abortDuringScriptStopsSequential() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "script: echo \"running $FOO\"; sleep 300\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', sequential: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = p.scheduleBuild2(0).waitForStart();
+                story.j.waitForMessage("running first", b);
+                b.getExecutor().interrupt();
+                story.j.assertBuildStatus(Result.ABORTED, story.j.waitForCompletion(b));
+                story.j.assertLogNotContains("running second", b);
+                story.j.assertLogNotContains("Error in [FOO=first]", b);
+            }
+        });
+    }
+
+    @Test public void rerunAfterFailFast() throws Exception {
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "  - FOO=third\n" +
+                        "matrix:\n" +
+                        "  allow_failures:\n" +
+                        "    - env: FOO=third\n" +
+                        "script: test \"$FOO\" != first\n");
+        sampleRepo.write("Jenkinsfile",
+                "simpleTravisRunner(path: '.travis.yml', maxParallel: 1, failFast: true, allowFailures: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                // The executions after the failed one never started, but the allowed failure isn't offered for a rerun.
+                assertEquals(Arrays.asList("[FOO=first]", "[FOO=second]"),
+                        b.getAction(TravisRerunAction.class).getCells());
+            }
+        });
+    }
+
+    @Test public void rerunFailedCells() throws Exception {
+        final File fixed = new File(tmp.getRoot(), "fixed");
+        sampleRepo.init();
+        sampleRepo.write(".travis.yml",
+                "env:\n" +
+                        "  - FOO=first\n" +
+                        "  - FOO=second\n" +
+                        "script:\n" +
+                        "  - echo \"foo is $FOO\"\n" +
+                        "  - test \"$FOO\" != second -o -f '" + fixed.getAbsolutePath() + "'\n");
+        sampleRepo.write("Jenkinsfile", "simpleTravisRunner(path: '.travis.yml', lightweight: true)");
+        sampleRepo.git("add", "Jenkinsfile");
+        sampleRepo.git("add", ".travis.yml");
+        sampleRepo.git("commit", "--message=files");
+        story.addStep(new Statement() {
+            @Override public void evaluate() throws Throwable {
+                WorkflowJob p = story.j.jenkins.createProject(WorkflowJob.class, "p");
+                p.setDefinition(new CpsScmFlowDefinition(new GitStep(sampleRepo.toString()).createSCM(), "Jenkinsfile"));
+                WorkflowRun b1 = story.j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0).get());
+                TravisRerunAction action = b1.getAction(TravisRerunAction.class);
+                assertNotNull(action);
+                assertEquals(Collections.singletonList("[FOO=second]"), action.getCells());
+
+                // The rerun should use the .travis.yml the failed build ran, not what's there now.
+                sampleRepo.write(".travis.yml", "script: exit 1\n");
+                sampleRepo.git("commit", "--all", "--message=broken");
+                assertTrue(fixed.createNewFile());
+                WorkflowRun b2 = (WorkflowRun) action.scheduleRerun().get();
+                story.j.assertBuildStatusSuccess(b2);
+                story.j.assertLogContains("Rerunning failed matrix executions [[FOO=second]]", b2);
+                story.j.assertLogContains("foo is second", b2);
+                story.j.assertLogNotContains("foo is first", b2);
+                TravisRerunCause cause = b2.getCause(TravisRerunCause.class);
+                assertNotNull(cause);
+                assertEquals(b1.getNumber(), cause.getUpstreamBuild());
+                assertNull(b2.getAction(TravisRerunAction.class));
+            }
+        });
+    }
+
     // TODO: Env Matrix testing!
 
 
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import hudson.FilePath;
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TravisCacheStoreTest {
+
+    @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test public void saveAndRestore() throws Exception {
+        TravisCacheStore store = new TravisCacheStore(tmp.newFolder("store"), Long.MAX_VALUE);
+        File source = tmp.newFolder("source");
+        FileUtils.writeStringToFile(new File(source, "sub/file.txt"), "pants");
+
+        assertFalse(store.restore("key", new FilePath(tmp.newFolder("missing"))));
+        assertFalse(store.save("key", new FilePath(new File(tmp.getRoot(), "does-not-exist"))));
+        assertTrue(store.save("key", new FilePath(source)));
+
+        File target = new File(tmp.getRoot(), "target");
+        assertTrue(store.restore("key", new FilePath(target)));
+        assertEquals("pants", FileUtils.readFileToString(new File(target, "sub/file.txt")));
+    }
+
+    @Test public void restoreReplacesExistingContents() throws Exception {
+        TravisCacheStore store = new TravisCacheStore(tmp.newFolder("store"), Long.MAX_VALUE);
+        File source = tmp.newFolder("source");
+        FileUtils.writeStringToFile(new File(source, "file.txt"), "pants");
+        assertTrue(store.save("key", new FilePath(source)));
+
+        File target = tmp.newFolder("target");
+        FileUtils.writeStringToFile(new File(target, "file.txt"), "trousers");
+        FileUtils.writeStringToFile(new File(target, "stale/leftover.txt"), "shorts");
+        assertTrue(store.restore("key", new FilePath(target)));
+        assertEquals("pants", FileUtils.readFileToString(new File(target, "file.txt")));
+        assertFalse(new File(target, "stale").exists());
+    }
+
+    @Test public void identicalContentsShareAnArchive() throws Exception {
+        File root = tmp.newFolder("store");
+        TravisCacheStore store = new TravisCacheStore(root, Long.MAX_VALUE);
+        File source = tmp.newFolder("source");
+        FileUtils.writeStringToFile(new File(source, "file.txt"), "pants");
+
+        assertTrue(store.save("first", new FilePath(source)));
+        assertTrue(store.save("second", new FilePath(source)));
+        assertEquals(1, new File(root, "objects").list().length);
+        assertTrue(store.restore("second", new FilePath(tmp.newFolder("target"))));
+    }
+
+    @Test public void unchangedContentsAreNotArchivedAgain() throws Exception {
+        File root = tmp.newFolder("store");
+        TravisCacheStore store = new TravisCacheStore(root, Long.MAX_VALUE);
+        File source = tmp.newFolder("source");
+        File file = new File(source, "file.txt");
+        FileUtils.writeStringToFile(file, "pants");
+
+        assertTrue(store.save("key", new FilePath(source)));
+        File archive = new File(root, "objects").listFiles()[0];
+        long archived = archive.length();
+
+        // Only the modification time changes - same archive.
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        assertTrue(store.save("key", new FilePath(source)));
+        assertEquals(1, new File(root, "objects").list().length);
+        assertEquals(archived, archive.length());
+
+        FileUtils.writeStringToFile(file, "trousers");
+        assertTrue(store.save("key", new FilePath(source)));
+        assertEquals(2, new File(root, "objects").list().length);
+        File target = tmp.newFolder("target");
+        assertTrue(store.restore("key", new FilePath(target)));
+        assertEquals("trousers", FileUtils.readFileToString(new File(target, "file.txt")));
+    }
+
+    @Test public void temporaryFilesDontCountTowardsSize() throws Exception {
+        File root = tmp.newFolder("store");
+        File objects = new File(root, "objects");
+        File inFlight = new File(objects, "archive1.tmp");
+        FileUtils.writeByteArrayToFile(inFlight, new byte[4096]);
+        File stale = new File(objects, "archive2.tmp");
+        FileUtils.writeStringToFile(stale, "left over");
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L));
+        File source = tmp.newFolder("source");
+        FileUtils.writeStringToFile(new File(source, "file.txt"), "pants");
+
+        // Room for the archive, but not the temporary files as well.
+        TravisCacheStore store = new TravisCacheStore(root, 1024);
+        assertTrue(store.save("key", new FilePath(source)));
+        assertTrue(store.restore("key", new FilePath(tmp.newFolder("target"))));
+        assertTrue(inFlight.exists());
+        assertFalse(stale.exists());
+    }
+
+    @Test public void evictsLeastRecentlyUsed() throws Exception {
+        File root = tmp.newFolder("store");
+        File first = tmp.newFolder("first");
+        FileUtils.writeStringToFile(new File(first, "file.txt"), "first");
+        File second = tmp.newFolder("second");
+        FileUtils.writeStringToFile(new File(second, "file.txt"), "second");
+
+        assertTrue(new TravisCacheStore(root, Long.MAX_VALUE).save("first", new FilePath(first)));
+        File firstArchive = new File(root, "objects").listFiles()[0];
+        assertTrue(firstArchive.setLastModified(System.currentTimeMillis() - 60000));
+
+        // Room for one archive, but not two.
+        TravisCacheStore store = new TravisCacheStore(root, firstArchive.length() + 64);
+        assertTrue(store.save("second", new FilePath(second)));
+        assertFalse(firstArchive.exists());
+        // The key for the evicted archive goes with it.
+        assertEquals(1, new File(root, "keys").list().length);
+        assertFalse(store.restore("first", new FilePath(tmp.newFolder("target"))));
+        assertTrue(store.restore("second", new FilePath(tmp.newFolder("target2"))));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TravisPipelineGeneratorTest {
+
+    @Test public void singleExecution() {
+        String generated = TravisPipelineGenerator.generate(TravisPlanCompiler.compile(
+                "install: echo installing\n" +
+                        "script: make\n" +
+                        "deploy: something\n"), new HashMap<String,Object>());
+        assertTrue(generated, generated.contains("node {\n    checkout scm\n    stage 'Travis Install'\n"));
+        assertTrue(generated, generated.contains("stage 'Travis Script'"));
+        assertTrue(generated, generated.contains("echo 'Not executing \\'deploy\\' - Travis-specific'"));
+        assertTrue(generated, generated.startsWith("// Generated from .travis.yml by simpleTravisRunner"
+                + " - regenerate it rather than editing it.\ndef travisTimeout(int minutes, String description, Closure body) {\n"));
+        assertTrue(generated, generated.contains("travisTimeout(50, '1 commands') {\n"));
+        assertFalse(generated, generated.contains("parallel("));
+        assertFalse(generated, generated.contains("Error on after step(s)"));
+        assertFalse(generated, generated.contains("simpleTravisCache"));
+    }
+
+    @Test public void matrix() {
+        Map<String,Object> config = new HashMap<String,Object>();
+        config.put("label", "linux");
+        config.put("failFast", true);
+        config.put("allowFailures", true);
+        String generated = TravisPipelineGenerator.generate(TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "matrix:\n" +
+                        "  allow_failures:\n" +
+                        "    - env: FOO=b\n" +
+                        "cache:\n" +
+                        "  directories: [deps]\n" +
+                        "script: echo $FOO\n"), config);
+        assertTrue(generated, generated.contains("parallel(\n    '[FOO=a]': {\n        node('linux') {\n            withEnv(['FOO=a']) {\n"));
+        assertTrue(generated, generated.contains("withEnv(['FOO=a'])"));
+        assertTrue(generated, generated.contains("    },\n    '[FOO=b]': {\n        try {\n"));
+        assertTrue(generated, generated.contains("echo \"Allowed failure in [FOO=b]: ${e}\""));
+        assertTrue(generated, generated.contains("simpleTravisCache action: 'restore', key: (env.BRANCH_NAME ?: 'default') + '\\n[FOO=a]', directories: ['deps']"));
+        assertTrue(generated, generated.endsWith("    },\n    failFast: true\n)\n"));
+        assertFalse(generated, generated.contains("stage 'Travis Script'"));
+    }
+
+    @Test public void runtimes() {
+        String generated = TravisPipelineGenerator.generate(TravisPlanCompiler.compile(
+                "jdk: oraclejdk8\n" +
+                        "script: mvn test\n"), new HashMap<String,Object>());
+        assertTrue(generated, generated.contains(
+                "            withEnv(simpleTravisRuntimes(action: 'install', runtimes: ['jdk=oraclejdk8'])) {\n" +
+                "                withEnv(['TRAVIS_JDK_VERSION=oraclejdk8']) {\n"));
+    }
+
+    @Test public void escaping() {
+        assertEquals("'it\\'s a \\\\ \\n'", TravisPipelineGenerator.literal("it's a \\ \n"));
+        assertEquals("it's \\\\ \\'\\'' \\'", TravisPipelineGenerator.escapeMultiline("it's \\ ''' '"));
+        assertEquals("\\$FOO \\\"x\\\"", TravisPipelineGenerator.escapeGString("$FOO \"x\""));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * JMH benchmarks for the translation path: parsing the ".travis.yml", expanding the env matrix and building and
+ * serializing the plan. Run by {@link BenchmarkRunner} with "mvn -P benchmark test".
+ *
+ * The serialized size of each plan, which is what ends up in the Pipeline's program state, is reported alongside
+ * "serializePlan" by {@link SerializedSizeProfiler}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TravisPlanBenchmark {
+    /**
+     * The shape of the ".travis.yml": "small" is a plain build, "matrix" is 5 env axes with 10 values each, and
+     * "longScript" has 500 script commands.
+     */
+    @Param({"small", "matrix", "longScript"})
+    public String shape;
+
+    private String travisYml;
+    private Map<String,Object> parsed;
+    private TravisPlan plan;
+
+    @Setup
+    public void setUp() throws IOException {
+        travisYml = travisYml(shape);
+        parsed = parse(travisYml);
+        plan = TravisPlanCompiler.compile(travisYml);
+    }
+
+    @Benchmark
+    public Map<String,Object> parseYaml() {
+        return parse(travisYml);
+    }
+
+    @Benchmark
+    public TravisPlan compile() {
+        return TravisPlanCompiler.compile(travisYml);
+    }
+
+    @Benchmark
+    public Map<String,List<String>> generateEnvAxes() {
+        return TravisPlanCompiler.generateEnvAxes(parsed.containsKey("env") ? parsed.get("env") : "");
+    }
+
+    @Benchmark
+    public void expandMatrix(Blackhole blackhole) {
+        for (Iterator<TravisCell> cells = TravisMatrix.fromYaml(parsed).iterator(); cells.hasNext(); ) {
+            blackhole.consume(cells.next());
+        }
+    }
+
+    @Benchmark
+    public byte[] serializePlan() throws IOException {
+        return serialize(plan);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String,Object> parse(String yml) {
+        return (Map<String,Object>) new Yaml().load(yml);
+    }
+
+    private static byte[] serialize(TravisPlan plan) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(plan);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Adds the serialized plan size, and the number of matrix executions in it, to the results of "serializePlan" as
+     * secondary metrics, so they end up in the JSON report rather than only on the console.
+     */
+    public static final class SerializedSizeProfiler implements InternalProfiler {
+        @Override
+        public String getDescription() {
+            return "Serialized size of the plan";
+        }
+
+        @Override
+        public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        }
+
+        @Override
+        public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                           IterationParams iterationParams, IterationResult result) {
+            if (!benchmarkParams.getBenchmark().endsWith(".serializePlan")) {
+                return Collections.emptyList();
+            }
+            TravisPlan plan = TravisPlanCompiler.compile(travisYml(benchmarkParams.getParam("shape")));
+            try {
+                return Arrays.asList(
+                        new ScalarResult("plan.bytes", serialize(plan).length, "bytes", AggregationPolicy.AVG),
+                        new ScalarResult("plan.cells", plan.getCells().size(), "cells", AggregationPolicy.AVG));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static String travisYml(String shape) {
+        StringBuilder yml = new StringBuilder();
+        yml.append("language: java\n");
+        yml.append("cache:\n  directories:\n    - $HOME/.m2\n");
+        yml.append("install: mvn install -DskipTests=true\n");
+        if (shape.equals("matrix")) {
+            yml.append("env:\n");
+            for (int axis = 0; axis < 5; axis++) {
+                for (int value = 0; value < 10; value++) {
+                    yml.append("  - AXIS_").append(axis).append("=value").append(value).append('\n');
+                }
+            }
+            yml.append("matrix:\n  exclude:\n    - env: AXIS_0=value0 AXIS_1=value1\n");
+            yml.append("  allow_failures:\n    - env: AXIS_4=value9\n");
+        }
+        yml.append("script:\n");
+        int commands = shape.equals("longScript") ? 500 : 2;
+        for (int i = 0; i < commands; i++) {
+            yml.append("  - mvn -B -Dtest=Test").append(i).append(" test\n");
+        }
+        yml.append("after_failure: cat target/surefire-reports/*.txt\n");
+        return yml.toString();
+    }
+}
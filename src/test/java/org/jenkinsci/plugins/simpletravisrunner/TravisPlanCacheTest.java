@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TravisPlanCacheTest {
+
+    @Before public void clearCache() {
+        TravisPlanCache.clear();
+    }
+
+    @Test public void hitsAndMisses() {
+        TravisPlan first = TravisPlanCache.get("script: echo pants\n");
+        TravisPlan second = TravisPlanCache.get("script: echo pants\n");
+        TravisPlanCache.get("script: echo trousers\n");
+        assertSame(first, second);
+        assertEquals(1, TravisPlanCache.getHits());
+        assertEquals(2, TravisPlanCache.getMisses());
+        assertEquals(2, TravisPlanCache.size());
+    }
+
+    @Test public void evictsLeastRecentlyUsed() {
+        TravisPlan first = TravisPlanCache.get("script: echo 0\n");
+        for (int i = 1; i <= TravisPlanCache.SIZE; i++) {
+            TravisPlanCache.get("script: echo " + i + "\n");
+        }
+        assertEquals(TravisPlanCache.SIZE, TravisPlanCache.size());
+        assertNotSame(first, TravisPlanCache.get("script: echo 0\n"));
+        assertEquals(TravisPlanCache.SIZE + 2, TravisPlanCache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void badFormatNotCached() {
+        try {
+            TravisPlanCache.get("- just a list\n");
+        } finally {
+            assertEquals(0, TravisPlanCache.size());
+        }
+    }
+}
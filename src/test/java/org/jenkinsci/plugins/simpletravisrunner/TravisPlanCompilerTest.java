@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.simpletravisrunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TravisPlanCompilerTest {
+
+    @Test public void phases() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "install: echo 'in install'\n" +
+                        "script:\n" +
+                        "  - ls -la\n" +
+                        "  - echo pants\n" +
+                        "deploy: something\n");
+        assertTrue(plan.hasPhase("install"));
+        assertFalse(plan.hasPhase("before_install"));
+        assertEquals(Collections.singletonList("echo 'in install'"), plan.getCommands("install"));
+        assertEquals(Arrays.asList("ls -la", "echo pants"), plan.getCommands("script"));
+        assertEquals(Collections.<String>emptyList(), plan.getCommands("after_script"));
+        assertEquals(Collections.singletonList("deploy"), plan.getDeploySteps());
+        assertTrue(plan.getCells().isEmpty());
+    }
+
+    @Test public void commandsAreImmutable() {
+        TravisPlan plan = TravisPlanCompiler.compile("script: echo pants\n");
+        try {
+            plan.getCommands("script").add("rm -rf /");
+            fail("cached plans are shared between builds, so must not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(Collections.singletonList("echo pants"), plan.getCommands("script"));
+    }
+
+    @Test public void envCombinations() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "  - \"BAR=1\"\n" +
+                        "  - BAR=2\n" +
+                        "  - FOO=a\n" +
+                        "script: echo pants\n");
+        assertEquals(Arrays.asList("FOO", "BAR"), plan.getAxisKeys());
+        assertEquals(4, plan.getCells().size());
+        assertEquals(Arrays.asList("FOO=a", "BAR=1"), plan.getCells().get(0).getEnv());
+        assertEquals(Arrays.asList("FOO=b", "BAR=1"), plan.getCells().get(1).getEnv());
+        assertEquals(Arrays.asList("FOO=a", "BAR=2"), plan.getCells().get(2).getEnv());
+        assertEquals(Arrays.asList("FOO=b", "BAR=2"), plan.getCells().get(3).getEnv());
+        assertEquals("[FOO=b, BAR=2]", plan.getCells().get(3).getName());
+    }
+
+    @Test public void allowFailures() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "matrix:\n" +
+                        "  allow_failures:\n" +
+                        "    - env: FOO=b\n" +
+                        "script: echo pants\n");
+        assertFalse(plan.getCells().get(0).isAllowFailure());
+        assertTrue(plan.getCells().get(1).isAllowFailure());
+    }
+
+    @Test public void runtimeAxes() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "jdk:\n" +
+                        "  - openjdk7\n" +
+                        "  - oraclejdk8\n" +
+                        "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "matrix:\n" +
+                        "  exclude:\n" +
+                        "    - jdk: openjdk7\n" +
+                        "      env: FOO=b\n" +
+                        "  allow_failures:\n" +
+                        "    - jdk: oraclejdk8\n" +
+                        "install: mvn install\n" +
+                        "script: mvn test\n");
+        assertEquals(Arrays.asList("FOO", "TRAVIS_JDK_VERSION"), plan.getAxisKeys());
+        assertEquals(3, plan.getCells().size());
+        assertEquals(Arrays.asList("FOO=a", "TRAVIS_JDK_VERSION=openjdk7"), plan.getCells().get(0).getEnv());
+        assertEquals(Arrays.asList("FOO=a", "TRAVIS_JDK_VERSION=oraclejdk8"), plan.getCells().get(1).getEnv());
+        assertEquals(Arrays.asList("FOO=b", "TRAVIS_JDK_VERSION=oraclejdk8"), plan.getCells().get(2).getEnv());
+        assertFalse(plan.getCells().get(0).isAllowFailure());
+        assertTrue(plan.getCells().get(2).isAllowFailure());
+        assertEquals(Collections.singletonList("jdk=openjdk7"), plan.getCells().get(0).getRuntimes());
+        assertEquals(Arrays.asList("jdk=openjdk7", "jdk=oraclejdk8"), plan.getRuntimes());
+        assertEquals(Collections.<String>emptyList(), SharedSetupPhases.find(plan));
+    }
+
+    @Test public void runtimeOnly() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "python: \"3.5\"\n" +
+                        "node_js: [4, 6]\n" +
+                        "script: make\n");
+        assertEquals(2, plan.getCells().size());
+        assertEquals(Arrays.asList("python=3.5", "node_js=4"), plan.getCells().get(0).getRuntimes());
+        assertEquals(Arrays.asList("TRAVIS_PYTHON_VERSION=3.5", "TRAVIS_NODE_VERSION=6"), plan.getCells().get(1).getEnv());
+    }
+
+    @Test public void paths() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "paths:\n" +
+                        "  - \"**\"\n" +
+                        "  - \"!docs/**\"\n" +
+                        "env:\n" +
+                        "  - MODULE=core\n" +
+                        "  - MODULE=web\n" +
+                        "matrix:\n" +
+                        "  include:\n" +
+                        "    - env: MODULE=cli\n" +
+                        "      paths: cli/\n" +
+                        "  paths:\n" +
+                        "    - env: MODULE=core\n" +
+                        "      paths: core/**\n" +
+                        "    - env: MODULE=web\n" +
+                        "      paths: [web/**, core/**]\n" +
+                        "script: echo pants\n");
+        assertEquals(Arrays.asList("**", "!docs/**"), plan.getPaths());
+        assertTrue(plan.isAffectedBy(null));
+        assertTrue(plan.isAffectedBy(Arrays.asList("docs/index.md", "core/src/Main.java")));
+        assertFalse(plan.isAffectedBy(Arrays.asList("docs/index.md", "docs/img/logo.png")));
+
+        TravisCell core = plan.getCells().get(0);
+        TravisCell web = plan.getCells().get(1);
+        TravisCell cli = plan.getCells().get(2);
+        assertEquals(Collections.singletonList("core/**"), core.getPaths());
+        assertEquals(Arrays.asList("web/**", "core/**"), web.getPaths());
+        assertEquals(Collections.singletonList("cli/"), cli.getPaths());
+
+        assertTrue(core.isAffectedBy(Collections.singletonList("core/pom.xml")));
+        assertTrue(web.isAffectedBy(Collections.singletonList("core/pom.xml")));
+        assertFalse(cli.isAffectedBy(Collections.singletonList("core/pom.xml")));
+        assertFalse(core.isAffectedBy(Collections.singletonList("web/index.html")));
+        assertTrue(cli.isAffectedBy(Collections.singletonList("cli/src/Cli.java")));
+        assertFalse(cli.isAffectedBy(Collections.singletonList("client/Cli.java")));
+    }
+
+    @Test public void includePathsOnlyApplyToTheirOwnCell() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "matrix:\n" +
+                        "  include:\n" +
+                        "    - env: FOO=a\n" +
+                        "      paths: docs/**\n" +
+                        "script: echo pants\n");
+        assertEquals(3, plan.getCells().size());
+        assertEquals(Collections.singletonList("FOO=a"), plan.getCells().get(0).getEnv());
+        assertTrue(plan.getCells().get(0).getPaths().isEmpty());
+        assertTrue(plan.getCells().get(1).getPaths().isEmpty());
+        assertEquals(Collections.singletonList("docs/**"), plan.getCells().get(2).getPaths());
+    }
+
+    @Test public void noPaths() {
+        TravisPlan plan = TravisPlanCompiler.compile("env: FOO=a\nscript: echo pants\n");
+        assertTrue(plan.getPaths().isEmpty());
+        assertTrue(plan.isAffectedBy(Collections.singletonList("anything")));
+        assertTrue(plan.getCells().get(0).isAffectedBy(Collections.singletonList("anything")));
+    }
+
+    @Test public void globs() {
+        assertTrue(PathFilter.toRegex("**/*.java").matcher("Main.java").matches());
+        assertTrue(PathFilter.toRegex("**/*.java").matcher("src/main/Main.java").matches());
+        assertFalse(PathFilter.toRegex("*.java").matcher("src/Main.java").matches());
+        assertTrue(PathFilter.toRegex("src/**").matcher("src/a/b.txt").matches());
+        assertTrue(PathFilter.toRegex("/README.?d").matcher("README.md").matches());
+        assertFalse(PathFilter.toRegex("a.b").matcher("axb").matches());
+    }
+
+    @Test public void includeAndExclude() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "  - BAR=1\n" +
+                        "  - BAR=2\n" +
+                        "matrix:\n" +
+                        "  exclude:\n" +
+                        "    - env: FOO=b BAR=1\n" +
+                        "    - env: FOO=a BAR=3\n" +
+                        "  include:\n" +
+                        "    - env: FOO=c BAZ=\"x\"\n" +
+                        "  allow_failures:\n" +
+                        "    - env: BAZ=x\n" +
+                        "script: echo pants\n");
+        assertEquals(Arrays.asList("FOO", "BAR", "BAZ"), plan.getAxisKeys());
+        assertEquals(4, plan.getCells().size());
+        assertEquals(Arrays.asList("FOO=a", "BAR=1"), plan.getCells().get(0).getEnv());
+        assertEquals(Arrays.asList("FOO=a", "BAR=2"), plan.getCells().get(1).getEnv());
+        assertEquals(Arrays.asList("FOO=b", "BAR=2"), plan.getCells().get(2).getEnv());
+        assertEquals(Arrays.asList("FOO=c", "BAZ=x"), plan.getCells().get(3).getEnv());
+        assertFalse(plan.getCells().get(2).isAllowFailure());
+        assertTrue(plan.getCells().get(3).isAllowFailure());
+    }
+
+    @Test public void includeRepeatingAnEnvironment() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "matrix:\n" +
+                        "  include:\n" +
+                        "    - env: FOO=a\n" +
+                        "    - env: FOO=a\n" +
+                        "script: echo pants\n");
+        assertEquals(4, plan.getCells().size());
+        assertEquals("[FOO=a]", plan.getCells().get(0).getName());
+        assertEquals("[FOO=b]", plan.getCells().get(1).getName());
+        assertEquals("[FOO=a] #2", plan.getCells().get(2).getName());
+        assertEquals(Arrays.asList("FOO=a"), plan.getCells().get(2).getEnv());
+        assertEquals("[FOO=a] #3", plan.getCells().get(3).getName());
+    }
+
+    @Test public void excludeEverything() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "env:\n" +
+                        "  - FOO=a\n" +
+                        "  - FOO=b\n" +
+                        "matrix:\n" +
+                        "  exclude:\n" +
+                        "    - env: FOO=a\n" +
+                        "    - env: FOO=b\n" +
+                        "script: echo pants\n");
+        assertTrue(plan.getCells().isEmpty());
+    }
+
+    @Test public void withoutPhases() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "install: echo 'in install'\n" +
+                        "script: echo pants\n");
+        TravisPlan withoutInstall = plan.withoutPhases(Collections.singletonList("install"));
+        assertFalse(withoutInstall.hasPhase("install"));
+        assertTrue(withoutInstall.hasPhase("script"));
+        assertTrue(plan.hasPhase("install"));
+    }
+
+    @Test public void stashExcludes() {
+        TravisPlan plan = TravisPlanCompiler.compile(
+                "cache:\n" +
+                        "  directories:\n" +
+                        "    - node_modules\n" +
+                        "    - ./vendor/bundle/\n" +
+                        "    - $HOME/.m2\n" +
+                        "    - ~/.gradle\n" +
+                        "    - /var/cache/apt\n" +
+                        "script: echo pants\n");
+        assertEquals(".git/**,node_modules/**,vendor/bundle/**", SharedSetupPhases.stashExcludes(plan));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void badPhaseFormat() {
+        TravisPlanCompiler.compile("script:\n  foo: bar\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void notAMap() {
+        TravisPlanCompiler.compile("- just a list\n");
+    }
+}